@@ -3,43 +3,62 @@ package stream.flarebot.webhook_distributor;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public enum Sender {
 
-    GITHUB(request -> request.headers().stream().anyMatch(header -> header.startsWith("X-GitHub"))),
-    SENTRY(request -> request.userAgent().toLowerCase().startsWith("sentry")),
-    POSTMAN(request -> request.userAgent().toLowerCase().contains("postman")),
-    DBL(request -> request.userAgent().equals("DBL")),
+    GITHUB(headers -> headers.keySet().stream().anyMatch(header -> header.startsWith("X-GitHub"))),
+    SENTRY(headers -> userAgent(headers).toLowerCase().startsWith("sentry")),
+    POSTMAN(headers -> userAgent(headers).toLowerCase().contains("postman")),
+    DBL(headers -> userAgent(headers).equals("DBL")),
     UNKNOWN(noOp -> {
-        LoggerFactory.getLogger(Sender.class).warn("Found unknown sender, IP: " + noOp.ip() + ", userAgent: "
-                + noOp.userAgent() + ", Headers: " + noOp.headers().stream()
-                .map(header -> header + ": " + noOp.headers(header)).collect(Collectors.joining(", ")));
+        LoggerFactory.getLogger(Sender.class).warn("Found unknown sender, IP: " + noOp.get("Sent-By") + ", userAgent: "
+                + userAgent(noOp) + ", Headers: " + noOp.entrySet().stream()
+                .map(header -> header.getKey() + ": " + header.getValue()).collect(Collectors.joining(", ")));
         return true;
     });
 
     private static final Sender[] values = values();
-    private Predicate<Request> requestPredicate;
+    private Predicate<Map<String, String>> headersPredicate;
     private String userAgent;
 
-    Sender(Predicate<Request> requestPredicate) {
-        this.requestPredicate = requestPredicate;
+    Sender(Predicate<Map<String, String>> headersPredicate) {
+        this.headersPredicate = headersPredicate;
     }
 
     public static Sender getSender(Request request) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String header : request.headers())
+            headers.put(header, request.headers(header));
+        return getSender(headers);
+    }
+
+    /**
+     * Find the sender from the request headers.
+     *
+     * @param headers The request headers, the map should ignore the case of the header names.
+     * @return The sender of the request.
+     */
+    public static Sender getSender(Map<String, String> headers) {
         Sender sender = null;
         for (Sender s : values) {
-            if (s.requestPredicate.test(request)) {
+            if (s.headersPredicate.test(headers)) {
                 sender = s;
                 break;
             }
         }
         if (sender == null)
             sender = Sender.UNKNOWN;
-        sender.setUserAgent(request.userAgent());
+        sender.setUserAgent(headers.get("User-Agent"));
         return sender;
     }
+
+    private static String userAgent(Map<String, String> headers) {
+        return headers.getOrDefault("User-Agent", "");
+    }
     
     private void setUserAgent(String userAgent) {
         this.userAgent = userAgent;
@@ -2,23 +2,33 @@ package stream.flarebot.webhook_distributor;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.Request;
 import spark.Response;
-import spark.Spark;
+import stream.flarebot.webhook_distributor.common.LatencyStats;
+import stream.flarebot.webhook_distributor.common.LocalTransport;
+import stream.flarebot.webhook_distributor.common.ThreadPoolSettings;
+import stream.flarebot.webhook_distributor.common.Trace;
 import stream.flarebot.webhook_distributor.events.WebHookBatchReceiveEvent;
 import stream.flarebot.webhook_distributor.events.Event;
 import stream.flarebot.webhook_distributor.events.WebHookReceiveEvent;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.rmi.UnexpectedException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class WebHookDistributor {
 
@@ -36,6 +46,10 @@ public class WebHookDistributor {
     private long retryTime;
 
     private Set<WebHookListener> listeners;
+    private ThreadPoolSettings threadPoolSettings;
+    private WebHookServer server;
+    private final LatencyStats latencyStats;
+    private final LocalTransport.Receiver localReceiver = this::receiveLocal;
 
     /**
      * Start the setup for the WebHookDistributor with the WebHook Server URL and this service name.
@@ -46,7 +60,8 @@ public class WebHookDistributor {
      *                         for the client to just find a random port.
      */
     WebHookDistributor(String webHookServerUrl, String serviceName, int port, boolean useBatch,
-                              int maxConnectionAttempts, long startingRetryTime, Set<WebHookListener> listeners) {
+                              int maxConnectionAttempts, long startingRetryTime, Set<WebHookListener> listeners,
+                              ThreadPoolSettings threadPoolSettings, long slowTraceThreshold) {
         this.webHookServerUrl = webHookServerUrl;
         this.serviceName = serviceName;
         this.port = port;
@@ -54,31 +69,77 @@ public class WebHookDistributor {
         this.maxConnectionAttempts = maxConnectionAttempts;
         this.retryTime = startingRetryTime;
         this.listeners = listeners;
-    }
-
-    private void init() {
-        Spark.port(port);
-        Spark.init();
-        Spark.awaitInitialization();
-        logger.info("Started WebHook Listening server on port " + Spark.port());
+        this.threadPoolSettings = threadPoolSettings;
+        this.latencyStats = new LatencyStats(slowTraceThreshold);
     }
 
     /**
      * Start the WebHookDistributor, this will try and connect to the main WebHookDistributor Server and see if it's alive.
      * After that it will send the port and the service name so the server can expect and redirect the webhooks here.
+     * <p>
+     * Distributors on the same port share one HTTP server. If the WebHookDistributor Server is running in the same
+     * JVM it hands the webhooks straight to this distributor instead of sending them over HTTP.
      */
     public void start() {
-        init();
+        server = WebHookServer.register(this, threadPoolSettings);
+        LocalTransport.register(serviceName, port, localReceiver);
         checkServer();
-        setupRoutes();
+    }
+
+    /**
+     * Stop receiving webhooks, the HTTP server is stopped if no other distributors are using it.
+     */
+    public void stop() {
+        LocalTransport.unregister(serviceName, port, localReceiver);
+        if (server != null) {
+            WebHookServer.unregister(this);
+            server = null;
+        }
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * The latencies of the webhooks this service received, broken down by stage. The stages are "wire" (server to
+     * client), "parse", "listener" and "total" (server ingest to the listeners finishing). Each request is recorded
+     * once, a batch by its oldest webhook.
+     *
+     * @return The latency stats of this service.
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Percent-encode a service name so it can be used as one segment of a URL path, Spark decodes it again when it
+     * matches the route.
+     */
+    private static String encodePathSegment(String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8").replace("+", "%20").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 isn't supported!", e);
+        }
     }
 
     private void checkServer() {
         OkHttpClient client = new OkHttpClient();
         try {
-            com.squareup.okhttp.Response response = client.newCall(new Request.Builder().url(webHookServerUrl + "/" + serviceName + "/init")
+            String path = "/" + encodePathSegment(serviceName);
+            JsonObject body = new JsonObject();
+            body.addProperty("port", port);
+            body.addProperty("path", path);
+            body.addProperty("batch", usingBatch);
+            com.squareup.okhttp.Response response = client.newCall(new com.squareup.okhttp.Request.Builder()
+                    .url(webHookServerUrl + path + "/init")
                     .addHeader("User-Agent", "WebHookDistributor")
-                    .put(RequestBody.create(MediaType.parse("application/json"), "{\"port\": " + port + "}"))
+                    .put(RequestBody.create(MediaType.parse("application/json"), body.toString()))
                     .build()).execute();
 
             if (response.code() != 200) {
@@ -105,16 +166,18 @@ public class WebHookDistributor {
         }
     }
 
-    private void sendEvent(Event e) {
+    void sendEvent(Event e) {
         for (WebHookListener listener : listeners) {
             if (e instanceof WebHookReceiveEvent)
                 listener.onWebHookReceive((WebHookReceiveEvent) e);
             else if (e instanceof WebHookBatchReceiveEvent) {
                 if (usingBatch)
                     listener.onBatchWebHookReceive((WebHookBatchReceiveEvent) e);
-                else
-                    for (JsonElement element : ((WebHookBatchReceiveEvent) e).getWebHooks())
-                        listener.onWebHookReceive(new WebHookReceiveEvent(element, e));
+                else {
+                    WebHookBatchReceiveEvent batch = (WebHookBatchReceiveEvent) e;
+                    for (JsonElement webHook : batch.getWebHooks())
+                        listener.onWebHookReceive(new WebHookReceiveEvent(webHook, e));
+                }
             }
             else
                 try {
@@ -125,56 +188,105 @@ public class WebHookDistributor {
         }
     }
 
-    private void setupRoutes() {
-        Spark.after((req, res) -> {
-            res.header("Content-Type", "application/json");
-            res.header("Content-Encoding", "gzip");
+    /**
+     * Stamp the traces of webhooks which have just been received and parsed.
+     *
+     * @param traces   The traces of the webhooks.
+     * @param received When the webhooks were received, in microseconds since the epoch.
+     */
+    void startTraces(List<Trace> traces, long received) {
+        for (Trace trace : traces) {
+            trace.set(Trace.Stage.RECEIVE, received);
+            trace.mark(Trace.Stage.PARSE);
+        }
+    }
 
-            logger.info(String.format("[%d] %s Request from %s (%s) to %s",
-                    res.status(), req.requestMethod(), req.ip(), req.userAgent(), req.uri()));
-        });
+    /**
+     * Stamp the traces once the listeners are done with the webhooks and record them in the latency stats.
+     *
+     * @param traces The traces of the webhooks.
+     */
+    void finishTraces(List<Trace> traces) {
+        for (Trace trace : traces) {
+            trace.mark(Trace.Stage.LISTENER);
+            latencyStats.record(trace, "wire", Trace.Stage.FORWARD, Trace.Stage.RECEIVE);
+            latencyStats.record(trace, "parse", Trace.Stage.RECEIVE, Trace.Stage.PARSE);
+            latencyStats.record(trace, "listener", Trace.Stage.PARSE, Trace.Stage.LISTENER);
+            latencyStats.record(trace, "total", Trace.Stage.INGEST, Trace.Stage.LISTENER);
+            latencyStats.sample(trace, trace.between(Trace.Stage.INGEST, Trace.Stage.LISTENER));
+        }
+    }
 
-        Spark.notFound((req, res) -> {
-            res.type("application/json");
-            if (req.requestMethod().equalsIgnoreCase("GET"))
-                return "{\"Hello\": \"World\"}";
-            return "{\"error\":\"Route not found!\"}";
-        });
+    /**
+     * Fire the events for webhooks handed over by a WebHookDistributor Server running in this JVM. The server parses
+     * the payloads so it has already stamped when they were received and parsed.
+     */
+    private void receiveLocal(List<JsonElement> payloads, String ip, String userAgent, String authorization,
+                              List<Trace> traces) {
+        // Headers the webhook didn't have are left out, the same as they would be over HTTP.
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (userAgent != null)
+            headers.put("User-Agent", userAgent);
+        if (ip != null)
+            headers.put("Sent-By", ip);
+        if (authorization != null)
+            headers.put("Authorization", authorization);
+        Sender sender = Sender.getSender(headers);
+        // Only the oldest trace is recorded, a batch over HTTP carries just that one so both count the same.
+        Trace trace = Trace.oldest(traces);
 
-        Spark.get("/", (req, res) -> "{\"Hello\": \"World\"}");
+        if (payloads.size() == 1)
+            sendEvent(new WebHookReceiveEvent(payloads.get(0), sender, authorization, ip, trace));
+        else {
+            JsonArray array = new JsonArray();
+            for (JsonElement payload : payloads)
+                array.add(payload);
+            sendEvent(new WebHookBatchReceiveEvent(array, sender, authorization, ip, trace));
+        }
+        finishTraces(trace == null ? Collections.emptyList() : Collections.singletonList(trace));
+    }
 
-        Spark.post("/", (req, res) -> {
-            if (req.body() != null && !req.body().isEmpty()) {
-                try {
-                    JsonElement element = parser.parse(req.body());
+    Object receive(Request req, Response res) {
+        long received = Trace.now();
+        if (req.body() != null && !req.body().isEmpty()) {
+            try {
+                JsonElement element = parser.parse(req.body());
+                List<Trace> traces = tracesFromHeaders(req);
+                startTraces(traces, received);
 
-                    sendEvent(new WebHookReceiveEvent(element, req));
-                    return getSuccessRequest(res);
-                } catch (JsonParseException e) {
-                    return getBadRequest(res, "Invalid JSON object!");
-                }
+                sendEvent(new WebHookReceiveEvent(element, req, Trace.oldest(traces)));
+                finishTraces(traces);
+                return getSuccessRequest(res);
+            } catch (JsonParseException e) {
+                return getBadRequest(res, "Invalid JSON object!");
             }
-            return getBadRequest(res, "Body required.");
-        });
+        }
+        return getBadRequest(res, "Body required.");
+    }
 
-        Spark.post("/batch", (req, res) -> {
-            if (req.body() != null && !req.body().isEmpty()) {
-                try {
-                    JsonElement element = parser.parse(req.body());
-                    if (!(element instanceof JsonArray))
-                        return getBadRequest(res, "Batch needs to send a JsonArray!");
-
-                    sendEvent(new WebHookBatchReceiveEvent(element.getAsJsonArray(), req));
-                    return getSuccessRequest(res);
-                } catch (JsonParseException e) {
-                    return getBadRequest(res, "Invalid JSON object!");
-                }
+    Object receiveBatch(Request req, Response res) {
+        long received = Trace.now();
+        if (req.body() != null && !req.body().isEmpty()) {
+            try {
+                JsonElement element = parser.parse(req.body());
+                if (!(element instanceof JsonArray))
+                    return getBadRequest(res, "Batch needs to send a JsonArray!");
+                List<Trace> traces = tracesFromHeaders(req);
+                startTraces(traces, received);
+
+                sendEvent(new WebHookBatchReceiveEvent(element.getAsJsonArray(), req, Trace.oldest(traces)));
+                finishTraces(traces);
+                return getSuccessRequest(res);
+            } catch (JsonParseException e) {
+                return getBadRequest(res, "Invalid JSON object!");
             }
-            return getBadRequest(res, "Body required.");
-        });
+        }
+        return getBadRequest(res, "Body required.");
+    }
 
-        Spark.get("/ping", (req, res) -> getPingRequest(res));
-        logger.info("Setup routes");
+    private List<Trace> tracesFromHeaders(Request req) {
+        Trace trace = Trace.fromHeaders(serviceName, req::headers);
+        return trace == null ? Collections.emptyList() : Collections.singletonList(trace);
     }
 
     private Response getBadRequest(Response res, String s) {
@@ -188,10 +300,4 @@ public class WebHookDistributor {
         res.body("{\"message\": \"WebHook received!\"}");
         return res;
     }
-
-    private Response getPingRequest(Response res) {
-        res.status(200);
-        res.body("{\"isUp\": true}");
-        return res;
-    }
 }
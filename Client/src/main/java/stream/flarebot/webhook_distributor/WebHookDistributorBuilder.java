@@ -1,5 +1,7 @@
 package stream.flarebot.webhook_distributor;
 
+import stream.flarebot.webhook_distributor.common.ThreadPoolSettings;
+
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -15,6 +17,14 @@ public class WebHookDistributorBuilder {
     private int maxConnectionAttempts = 3;
     private long retryTime = 2000;
 
+    private int minThreads = -1;
+    private int maxThreads = -1;
+    private int threadIdleTimeout = -1;
+    private int acceptQueueSize = 0;
+    private boolean usingVirtualThreads = false;
+
+    private long slowTraceThreshold = 1000;
+
     private Set<WebHookListener> listeners = new HashSet<>();
 
     public WebHookDistributorBuilder(String webHookServerUrl, String serviceName, int port) {
@@ -63,6 +73,7 @@ public class WebHookDistributorBuilder {
 
     /**
      * Set the WebHookDistributor to use batch events instead of sending all events when the client misses some.
+     * This also lets the server batch up live webhooks when lots of them are coming in at once.
      *
      * @return WebHookDistributorBuilder - Useful for chaining.
      */
@@ -95,8 +106,60 @@ public class WebHookDistributorBuilder {
         return this;
     }
 
+    /**
+     * Set the size of the thread pool which handles the webhooks sent to this client. By default Spark's thread pool
+     * settings are used.
+     *
+     * @param minThreads        The least amount of threads kept in the pool.
+     * @param maxThreads        The most threads the pool can have.
+     * @param idleTimeoutMillis How long in milliseconds a thread can be idle before it's stopped.
+     * @return WebHookDistributorBuilder - Useful for chaining.
+     */
+    public WebHookDistributorBuilder setThreadPool(int minThreads, int maxThreads, int idleTimeoutMillis) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.threadIdleTimeout = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Set how many connections can be waiting to be accepted before new ones are refused. The default is 0 which
+     * uses the OS default.
+     *
+     * @param acceptQueueSize The size of the accept queue.
+     * @return WebHookDistributorBuilder - Useful for chaining.
+     */
+    public WebHookDistributorBuilder setAcceptQueueSize(int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+        return this;
+    }
+
+    /**
+     * Handle webhooks and run the listeners on virtual threads instead of the thread pool. This needs Java 21 or above,
+     * on older versions the thread pool is used instead.
+     *
+     * @return WebHookDistributorBuilder - Useful for chaining.
+     */
+    public WebHookDistributorBuilder useVirtualThreads() {
+        this.usingVirtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Set how long in milliseconds a webhook can take from reaching the server to the listeners finishing before it's
+     * kept as a slow trace. The default is 1000 milliseconds.
+     *
+     * @param slowTraceThreshold The threshold in milliseconds.
+     * @return WebHookDistributorBuilder - Useful for chaining.
+     */
+    public WebHookDistributorBuilder setSlowTraceThreshold(long slowTraceThreshold) {
+        this.slowTraceThreshold = slowTraceThreshold;
+        return this;
+    }
+
     public WebHookDistributor build() {
         return new WebHookDistributor(webHookServerUrl, serviceName, port, usingBatch, maxConnectionAttempts, retryTime,
-                listeners);
+                listeners, new ThreadPoolSettings(minThreads, maxThreads, threadIdleTimeout, acceptQueueSize,
+                usingVirtualThreads), slowTraceThreshold);
     }
 }
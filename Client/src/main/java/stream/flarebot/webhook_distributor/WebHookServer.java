@@ -0,0 +1,136 @@
+package stream.flarebot.webhook_distributor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+import spark.Service;
+import stream.flarebot.webhook_distributor.common.ThreadPoolSettings;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The HTTP server webhooks are received on. Every WebHookDistributor using the same port shares one server, each
+ * service gets its webhooks on {@code /<service>} and {@code /<service>/batch}. When only one service is using the
+ * server it also gets the webhooks sent to {@code /} and {@code /batch}.
+ */
+class WebHookServer {
+
+    private static final Map<Integer, WebHookServer> servers = new HashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger(WebHookServer.class);
+
+    private final int port;
+    private final Service http;
+    private final Map<String, WebHookDistributor> distributors = new ConcurrentHashMap<>();
+
+    private WebHookServer(int port, ThreadPoolSettings threadPoolSettings) {
+        this.port = port;
+        this.http = threadPoolSettings.ignite(port);
+        logger.info("Started WebHook Listening server on port " + http.port());
+        setupRoutes();
+    }
+
+    /**
+     * Add a distributor to the server on its port, the server is started if this is the first one on the port.
+     *
+     * @param distributor        The distributor to add.
+     * @param threadPoolSettings The thread settings used if the server needs to be started.
+     * @return The server the distributor was added to.
+     */
+    static synchronized WebHookServer register(WebHookDistributor distributor, ThreadPoolSettings threadPoolSettings) {
+        WebHookServer server = servers.computeIfAbsent(distributor.getPort(),
+                port -> new WebHookServer(port, threadPoolSettings));
+        if (server.distributors.putIfAbsent(distributor.getServiceName(), distributor) != null)
+            throw new IllegalStateException("Service '" + distributor.getServiceName() + "' is already running on port "
+                    + distributor.getPort());
+        return server;
+    }
+
+    /**
+     * Remove a distributor from the server, the server is stopped once it has no distributors left.
+     *
+     * @param distributor The distributor to remove.
+     */
+    static synchronized void unregister(WebHookDistributor distributor) {
+        WebHookServer server = servers.get(distributor.getPort());
+        if (server == null || !server.distributors.remove(distributor.getServiceName(), distributor))
+            return;
+        if (server.distributors.isEmpty()) {
+            servers.remove(server.port);
+            server.http.stop();
+            server.logger.info("Stopped WebHook Listening server on port " + server.port);
+        }
+    }
+
+    private void setupRoutes() {
+        http.after((req, res) -> {
+            res.header("Content-Type", "application/json");
+            res.header("Content-Encoding", "gzip");
+
+            logger.info(String.format("[%d] %s Request from %s (%s) to %s",
+                    res.status(), req.requestMethod(), req.ip(), req.userAgent(), req.uri()));
+        });
+
+        http.notFound((req, res) -> {
+            res.type("application/json");
+            if (req.requestMethod().equalsIgnoreCase("GET"))
+                return "{\"Hello\": \"World\"}";
+            return "{\"error\":\"Route not found!\"}";
+        });
+
+        http.get("/", (req, res) -> "{\"Hello\": \"World\"}");
+
+        // The routes without a service have to be added first so they aren't taken as a service name.
+        http.get("/ping", (req, res) -> ping(getOnlyDistributor(), res));
+        http.post("/batch", (req, res) -> receiveBatch(getOnlyDistributor(), req, res));
+        http.post("/", (req, res) -> receive(getOnlyDistributor(), req, res));
+
+        http.get("/:service/ping", (req, res) -> ping(distributors.get(req.params(":service")), res));
+        http.get("/:service/stats/latency", (req, res) -> stats(distributors.get(req.params(":service")), res,
+                distributor -> distributor.getLatencyStats().toJson().toString()));
+        http.get("/:service/stats/traces", (req, res) -> stats(distributors.get(req.params(":service")), res,
+                distributor -> distributor.getLatencyStats().slowTracesToJson().toString()));
+        http.post("/:service/batch", (req, res) -> receiveBatch(distributors.get(req.params(":service")), req, res));
+        http.post("/:service", (req, res) -> receive(distributors.get(req.params(":service")), req, res));
+        logger.info("Setup routes");
+    }
+
+    private WebHookDistributor getOnlyDistributor() {
+        Iterator<WebHookDistributor> iterator = distributors.values().iterator();
+        if (!iterator.hasNext())
+            return null;
+        WebHookDistributor distributor = iterator.next();
+        return iterator.hasNext() ? null : distributor;
+    }
+
+    private Object receive(WebHookDistributor distributor, Request req, Response res) {
+        return distributor == null ? getUnknownServiceRequest(res) : distributor.receive(req, res);
+    }
+
+    private Object receiveBatch(WebHookDistributor distributor, Request req, Response res) {
+        return distributor == null ? getUnknownServiceRequest(res) : distributor.receiveBatch(req, res);
+    }
+
+    private Response ping(WebHookDistributor distributor, Response res) {
+        if (distributor == null)
+            return getUnknownServiceRequest(res);
+        res.status(200);
+        res.body("{\"isUp\": true}");
+        return res;
+    }
+
+    private Object stats(WebHookDistributor distributor, Response res, Function<WebHookDistributor, String> stats) {
+        return distributor == null ? getUnknownServiceRequest(res) : stats.apply(distributor);
+    }
+
+    private Response getUnknownServiceRequest(Response res) {
+        res.status(404);
+        res.body("{\"error\": \"Unknown service!\"}");
+        return res;
+    }
+}
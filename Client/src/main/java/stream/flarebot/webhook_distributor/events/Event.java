@@ -2,18 +2,31 @@ package stream.flarebot.webhook_distributor.events;
 
 import spark.Request;
 import stream.flarebot.webhook_distributor.Sender;
+import stream.flarebot.webhook_distributor.common.Trace;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 public class Event {
 
-    private Request request;
     private Sender sender;
+    private String authorization;
+    private String ip;
+    private Trace trace;
 
-    Event(Request request) {
-        this.request = request;
-        this.sender = Sender.getSender(request);
+    Event(Request request, Trace trace) {
+        this(Sender.getSender(request), request.headers("Authorization"), request.headers("Sent-By"), trace);
+    }
+
+    Event(Sender sender, String authorization, String ip, Trace trace) {
+        this.sender = sender;
+        this.authorization = authorization;
+        this.ip = ip;
+        this.trace = trace;
+    }
+
+    Event(Event event, Trace trace) {
+        this(event.sender, event.authorization, event.ip, trace);
     }
 
     public Sender getSender() {
@@ -22,15 +35,22 @@ public class Event {
 
     @Nullable
     public String getAuthorization() {
-        return this.request.headers("Authorization");
+        return this.authorization;
     }
 
     @Nonnull
     public String getIP() {
-        return this.request.headers("Sent-By");
+        return this.ip;
     }
 
-    protected Request getRequest() {
-        return this.request;
+    /**
+     * The timestamps of the webhook so far, the listener timestamp is added once every listener has finished. For a
+     * batch this is the trace of the oldest webhook in it.
+     *
+     * @return The trace or null if the server didn't send one.
+     */
+    @Nullable
+    public Trace getTrace() {
+        return this.trace;
     }
 }
@@ -3,17 +3,28 @@ package stream.flarebot.webhook_distributor.events;
 import com.google.gson.JsonArray;
 import spark.Request;
 import stream.flarebot.webhook_distributor.Sender;
+import stream.flarebot.webhook_distributor.common.Trace;
 
 public class WebHookBatchReceiveEvent extends Event {
 
     private JsonArray webHooks;
 
     public WebHookBatchReceiveEvent(JsonArray webHooks, Request request) {
-        super(request);
+        this(webHooks, request, null);
+    }
+
+    public WebHookBatchReceiveEvent(JsonArray webHooks, Request request, Trace trace) {
+        super(request, trace);
+        this.webHooks = webHooks;
+    }
+
+    public WebHookBatchReceiveEvent(JsonArray webHooks, Sender sender, String authorization, String ip, Trace trace) {
+        super(sender, authorization, ip, trace);
         this.webHooks = webHooks;
     }
 
     public JsonArray getWebHooks() {
         return webHooks;
     }
+
 }
@@ -2,18 +2,33 @@ package stream.flarebot.webhook_distributor.events;
 
 import com.google.gson.JsonElement;
 import spark.Request;
+import stream.flarebot.webhook_distributor.Sender;
+import stream.flarebot.webhook_distributor.common.Trace;
 
 public class WebHookReceiveEvent extends Event {
 
     private JsonElement payload;
 
     public WebHookReceiveEvent(JsonElement element, Request request) {
-        super(request);
+        this(element, request, null);
+    }
+
+    public WebHookReceiveEvent(JsonElement element, Request request, Trace trace) {
+        super(request, trace);
         this.payload = element;
     }
 
     public WebHookReceiveEvent(JsonElement element, Event event) {
-        super(event.getRequest());
+        this(element, event, event.getTrace());
+    }
+
+    public WebHookReceiveEvent(JsonElement element, Event event, Trace trace) {
+        super(event, trace);
+        this.payload = element;
+    }
+
+    public WebHookReceiveEvent(JsonElement element, Sender sender, String authorization, String ip, Trace trace) {
+        super(sender, authorization, ip, trace);
         this.payload = element;
     }
 
@@ -0,0 +1,78 @@
+package stream.flarebot.webhook_distributor.common;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in microseconds. Values are put into log scaled buckets, each power of two is
+ * split into {@value #SUB_BUCKETS} buckets, so recording is a few bit operations and one atomic increment and the
+ * percentiles are within 12.5% of the real value.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long micros) {
+        if (micros >= 0)
+            counts.incrementAndGet(bucket(micros));
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long next = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1; // The top buckets end past Long.MAX_VALUE
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * @param percentile The percentile to get, between 0 and 100.
+     * @return The latency in microseconds which the percentile of values are at or below, 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += snapshot[i] = counts.get(i);
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public JsonObject toJson() {
+        JsonObject object = new JsonObject();
+        object.addProperty("count", getCount());
+        object.addProperty("p50", getPercentile(50));
+        object.addProperty("p90", getPercentile(90));
+        object.addProperty("p99", getPercentile(99));
+        object.addProperty("max", getPercentile(100));
+        return object;
+    }
+}
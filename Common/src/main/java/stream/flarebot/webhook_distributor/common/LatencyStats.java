@@ -0,0 +1,85 @@
+package stream.flarebot.webhook_distributor.common;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms by service and stage plus a sample of the most recent slow traces.
+ */
+public class LatencyStats {
+
+    private static final int SLOW_TRACE_SAMPLES = 100;
+
+    private final long slowThresholdMicros;
+    private final Map<String, Map<String, LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+    private final Deque<Trace> slowTraces = new ArrayDeque<>(SLOW_TRACE_SAMPLES);
+
+    /**
+     * @param slowThresholdMillis Traces which take longer than this in total are kept as slow traces.
+     */
+    public LatencyStats(long slowThresholdMillis) {
+        this.slowThresholdMicros = TimeUnit.MILLISECONDS.toMicros(slowThresholdMillis);
+    }
+
+    /**
+     * Record the time a trace took between two stages, nothing is recorded if the trace hasn't reached both.
+     *
+     * @param trace The trace to record.
+     * @param name  The name of the stage in the stats.
+     * @param from  The stage the time starts at.
+     * @param to    The stage the time ends at.
+     */
+    public void record(Trace trace, String name, Trace.Stage from, Trace.Stage to) {
+        long micros = trace.between(from, to);
+        if (micros >= 0)
+            record(trace.getService(), name, micros);
+    }
+
+    public void record(String service, String name, long micros) {
+        histograms.computeIfAbsent(service, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, k -> new LatencyHistogram())
+                .record(micros);
+    }
+
+    /**
+     * Keep the trace as a slow trace if it took longer than the threshold.
+     *
+     * @param trace       The trace.
+     * @param totalMicros How long the trace took in total.
+     */
+    public void sample(Trace trace, long totalMicros) {
+        if (totalMicros < slowThresholdMicros)
+            return;
+        synchronized (slowTraces) {
+            if (slowTraces.size() == SLOW_TRACE_SAMPLES)
+                slowTraces.removeFirst();
+            slowTraces.addLast(trace);
+        }
+    }
+
+    public JsonObject toJson() {
+        JsonObject services = new JsonObject();
+        for (Map.Entry<String, Map<String, LatencyHistogram>> service : histograms.entrySet()) {
+            JsonObject stages = new JsonObject();
+            for (Map.Entry<String, LatencyHistogram> stage : service.getValue().entrySet())
+                stages.add(stage.getKey(), stage.getValue().toJson());
+            services.add(service.getKey(), stages);
+        }
+        return services;
+    }
+
+    public JsonArray slowTracesToJson() {
+        JsonArray array = new JsonArray();
+        synchronized (slowTraces) {
+            for (Trace trace : slowTraces)
+                array.add(trace.toJson());
+        }
+        return array;
+    }
+}
@@ -0,0 +1,103 @@
+package stream.flarebot.webhook_distributor.common;
+
+import com.google.gson.JsonElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands webhooks straight to the listeners of services running in the same JVM as the WebHookDistributor Server,
+ * without going through a socket or turning the payload back into JSON text.
+ */
+public final class LocalTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalTransport.class);
+    private static final Map<String, Receiver> receivers = new ConcurrentHashMap<>();
+
+    private LocalTransport() {}
+
+    /**
+     * @param service  The service name.
+     * @param port     The port the service receives webhooks on.
+     * @param receiver Takes the webhooks sent to the service.
+     */
+    public static void register(String service, int port, Receiver receiver) {
+        receivers.put(key(service, port), receiver);
+    }
+
+    /**
+     * @param service  The service name.
+     * @param port     The port the service receives webhooks on.
+     * @param receiver The receiver the service was registered with, nothing is removed if it has been replaced.
+     */
+    public static void unregister(String service, int port, Receiver receiver) {
+        receivers.remove(key(service, port), receiver);
+    }
+
+    /**
+     * A service is only local if it's running in this JVM on the same port it told the server about, so a different
+     * service which happens to have the same name doesn't get its webhooks.
+     *
+     * @param service The service name.
+     * @param port    The port the service was set up with.
+     * @return If the service is running in this JVM.
+     */
+    public static boolean isLocal(String service, int port) {
+        return receivers.containsKey(key(service, port));
+    }
+
+    /**
+     * Fire the webhook events on a service running in this JVM. More than one payload is sent as a batch, the same as
+     * it would be over HTTP.
+     *
+     * @param service       The service to send the payloads to.
+     * @param port          The port the service was set up with.
+     * @param payloads      The webhook payloads.
+     * @param ip            The IP of who sent the webhooks.
+     * @param userAgent     The user agent of who sent the webhooks.
+     * @param authorization The authorization header sent with the webhooks, can be null.
+     * @param traces        The traces of the webhooks in the same order as the payloads, already stamped with when
+     *                      they were received and parsed.
+     * @return If the webhooks were delivered, failed in the listeners or the service isn't running in this JVM.
+     */
+    public static Result deliver(String service, int port, List<JsonElement> payloads, String ip, String userAgent,
+                                 String authorization, List<Trace> traces) {
+        Receiver receiver = receivers.get(key(service, port));
+        if (receiver == null)
+            return Result.NOT_LOCAL;
+
+        try {
+            receiver.receive(payloads, ip, userAgent, authorization, traces);
+            return Result.DELIVERED;
+        } catch (RuntimeException e) {
+            logger.error("Listener for " + service + " failed to handle a local webhook!", e);
+            return Result.FAILED;
+        }
+    }
+
+    private static String key(String service, int port) {
+        return service + ':' + port;
+    }
+
+    public enum Result {
+        DELIVERED,
+        FAILED,
+        NOT_LOCAL
+    }
+
+    /**
+     * A service in this JVM which webhooks can be handed to.
+     */
+    @FunctionalInterface
+    public interface Receiver {
+
+        /**
+         * Fire the webhook events for the payloads, the arguments are the same as {@link LocalTransport#deliver}.
+         */
+        void receive(List<JsonElement> payloads, String ip, String userAgent, String authorization,
+                     List<Trace> traces);
+    }
+}
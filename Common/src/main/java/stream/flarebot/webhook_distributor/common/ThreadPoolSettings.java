@@ -0,0 +1,118 @@
+package stream.flarebot.webhook_distributor.common;
+
+import org.slf4j.LoggerFactory;
+import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The thread settings for the embedded Jetty server which receives the webhooks.
+ * <p>
+ * Virtual threads need Java 21 or above, on older runtimes a warning is logged and the normal thread pool is used.
+ * Spark picks the Jetty factory from one JVM wide registry, so the accept queue size and virtual threads are set while
+ * holding a lock until the server has started.
+ */
+public class ThreadPoolSettings {
+
+    private static ExecutorService virtualThreadExecutor;
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final int idleTimeoutMillis;
+    private final int acceptQueueSize;
+    private final boolean virtualThreads;
+
+    /**
+     * @param minThreads        The least amount of threads kept in the pool, -1 for Spark's default.
+     * @param maxThreads        The most threads the pool can have, -1 for Spark's default.
+     * @param idleTimeoutMillis How long a thread can be idle before it's stopped, -1 for Spark's default.
+     * @param acceptQueueSize   How many connections can wait to be accepted, 0 for the OS default.
+     * @param virtualThreads    If requests should be handled on virtual threads instead of the thread pool.
+     */
+    public ThreadPoolSettings(int minThreads, int maxThreads, int idleTimeoutMillis, int acceptQueueSize,
+                              boolean virtualThreads) {
+        if (maxThreads > 0 && minThreads > maxThreads)
+            throw new IllegalArgumentException("The min threads must not be above the max threads!");
+        if (acceptQueueSize < 0)
+            throw new IllegalArgumentException("The accept queue size must not be negative!");
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.acceptQueueSize = acceptQueueSize;
+        this.virtualThreads = virtualThreads && getVirtualThreadExecutor() != null;
+        if (virtualThreads && !this.virtualThreads)
+            LoggerFactory.getLogger(ThreadPoolSettings.class).warn("Virtual threads need Java 21 or above, "
+                    + "using the normal thread pool instead!");
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Start a new Spark server on the port with these settings.
+     *
+     * @param port The port to listen on.
+     * @return The started server, routes can be added to it straight away.
+     */
+    public Service ignite(int port) {
+        synchronized (ThreadPoolSettings.class) {
+            EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(
+                    new TunedJettyServerFactory(acceptQueueSize, virtualThreads ? getVirtualThreadExecutor() : null)));
+            try {
+                Service http = Service.ignite()
+                        .port(port)
+                        .threadPool(maxThreads, minThreads, idleTimeoutMillis);
+                http.init();
+                http.awaitInitialization();
+                return http;
+            } finally {
+                // The factory is global to Spark, put the default back so other servers in the JVM aren't tuned too.
+                EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory());
+            }
+        }
+    }
+
+    /**
+     * The executor for blocking work which is done off the request threads, like sending webhooks on. This is a
+     * virtual thread per task when they're used, otherwise the work is run on the calling thread.
+     */
+    public Executor getBlockingExecutor() {
+        return virtualThreads ? getVirtualThreadExecutor() : Runnable::run;
+    }
+
+    /**
+     * Looked up reflectively so the project can still be built and run on runtimes without virtual threads.
+     */
+    static synchronized ExecutorService getVirtualThreadExecutor() {
+        if (virtualThreadExecutor == null) {
+            try {
+                virtualThreadExecutor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+        return virtualThreadExecutor;
+    }
+}
@@ -0,0 +1,161 @@
+package stream.flarebot.webhook_distributor.common;
+
+import com.google.gson.JsonObject;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The timestamps of one webhook as it goes from the WebHookDistributor Server to the listeners. The server adds the
+ * first three and sends them in headers next to {@code Sent-By}, the client adds the rest. Timestamps are in
+ * microseconds since the epoch so they can be compared between the server and the client.
+ */
+public class Trace {
+
+    public static final String ID_HEADER = "Trace-Id";
+    public static final String INGEST_HEADER = "Trace-Ingest";
+    public static final String ENQUEUE_HEADER = "Trace-Enqueue";
+    public static final String FORWARD_HEADER = "Trace-Forward";
+
+    public enum Stage {
+        /** The server received the webhook. */
+        INGEST,
+        /** The server routed the webhook and queued or batched it. */
+        ENQUEUE,
+        /** The server started sending the webhook to the service. */
+        FORWARD,
+        /** The client received the webhook. */
+        RECEIVE,
+        /** The client parsed the webhook. */
+        PARSE,
+        /** The client's listeners finished with the webhook. */
+        LISTENER
+    }
+
+    private final String id;
+    private final String service;
+    private final long[] timestamps = new long[Stage.values().length];
+
+    public Trace(String id, String service) {
+        this.id = id;
+        this.service = service;
+    }
+
+    /**
+     * @return A new random trace ID.
+     */
+    public static String newId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /**
+     * @return The current time in microseconds since the epoch.
+     */
+    public static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public void mark(Stage stage) {
+        timestamps[stage.ordinal()] = now();
+    }
+
+    public void set(Stage stage, long timestamp) {
+        timestamps[stage.ordinal()] = timestamp;
+    }
+
+    /**
+     * @param stage The stage to get the timestamp of.
+     * @return The timestamp of the stage or 0 if the webhook hasn't reached it.
+     */
+    public long get(Stage stage) {
+        return timestamps[stage.ordinal()];
+    }
+
+    /**
+     * @return The microseconds between two stages or -1 if the webhook hasn't reached both.
+     */
+    public long between(Stage from, Stage to) {
+        long start = get(from);
+        long end = get(to);
+        return start == 0 || end == 0 || end < start ? -1 : end - start;
+    }
+
+    public JsonObject toJson() {
+        JsonObject object = new JsonObject();
+        object.addProperty("id", id);
+        object.addProperty("service", service);
+        for (Stage stage : Stage.values())
+            if (get(stage) != 0)
+                object.addProperty(stage.name().toLowerCase(), get(stage));
+        return object;
+    }
+
+    /**
+     * @param traces The traces of the webhooks in a delivery.
+     * @return The trace of the webhook which was received first, this is the one a batch is traced by. Null if there
+     * aren't any traces.
+     */
+    public static Trace oldest(List<Trace> traces) {
+        Trace oldest = null;
+        for (Trace trace : traces)
+            if (oldest == null || trace.get(Stage.INGEST) < oldest.get(Stage.INGEST))
+                oldest = trace;
+        return oldest;
+    }
+
+    /**
+     * Add the server timestamps of the trace to the request headers. Only one trace is sent with a request, a batch
+     * is sent with the trace of its oldest webhook so the headers are the same size however big the batch is.
+     *
+     * @param trace  The trace of the request.
+     * @param header Adds a header to the request.
+     */
+    public static void toHeaders(Trace trace, BiConsumer<String, String> header) {
+        header.accept(ID_HEADER, trace.id);
+        header.accept(INGEST_HEADER, Long.toString(trace.get(Stage.INGEST)));
+        header.accept(ENQUEUE_HEADER, Long.toString(trace.get(Stage.ENQUEUE)));
+        header.accept(FORWARD_HEADER, Long.toString(trace.get(Stage.FORWARD)));
+    }
+
+    /**
+     * Read the trace sent by the server from the request headers. Timestamps which can't be read are left out rather
+     * than failing the request.
+     *
+     * @param service The service the webhooks were sent to.
+     * @param headers Looks up a request header by name.
+     * @return The trace of the request, null if the server didn't send one.
+     */
+    public static Trace fromHeaders(String service, Function<String, String> headers) {
+        String id = headers.apply(ID_HEADER);
+        if (id == null || id.trim().isEmpty())
+            return null;
+
+        Trace trace = new Trace(id.trim(), service);
+        trace.set(Stage.INGEST, parseTimestamp(headers.apply(INGEST_HEADER)));
+        trace.set(Stage.ENQUEUE, parseTimestamp(headers.apply(ENQUEUE_HEADER)));
+        trace.set(Stage.FORWARD, parseTimestamp(headers.apply(FORWARD_HEADER)));
+        return trace;
+    }
+
+    private static long parseTimestamp(String header) {
+        if (header == null)
+            return 0;
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return 0; // Treated as the stage being missing.
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package stream.flarebot.webhook_distributor.common;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the Jetty servers for Spark with the accept queue size set and, if given, running on virtual threads.
+ */
+class TunedJettyServerFactory implements JettyServerFactory {
+
+    private final int acceptQueueSize;
+    private final ExecutorService virtualThreadExecutor;
+
+    TunedJettyServerFactory(int acceptQueueSize, ExecutorService virtualThreadExecutor) {
+        this.acceptQueueSize = acceptQueueSize;
+        this.virtualThreadExecutor = virtualThreadExecutor;
+    }
+
+    @Override
+    public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+        if (virtualThreadExecutor != null)
+            return create(new VirtualThreadPool(virtualThreadExecutor));
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        if (maxThreads > 0)
+            threadPool.setMaxThreads(maxThreads);
+        if (minThreads > 0)
+            threadPool.setMinThreads(minThreads);
+        if (threadTimeoutMillis > 0)
+            threadPool.setIdleTimeout(threadTimeoutMillis);
+        return create(threadPool);
+    }
+
+    @Override
+    public Server create(ThreadPool threadPool) {
+        // Spark creates its connector itself, so the accept queue size is set when the connector is added.
+        return new Server(threadPool) {
+            @Override
+            public void setConnectors(Connector[] connectors) {
+                if (connectors != null && acceptQueueSize > 0)
+                    for (Connector connector : connectors)
+                        if (connector instanceof ServerConnector)
+                            ((ServerConnector) connector).setAcceptQueueSize(acceptQueueSize);
+                super.setConnectors(connectors);
+            }
+        };
+    }
+}
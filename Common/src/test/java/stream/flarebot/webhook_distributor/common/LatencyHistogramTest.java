@@ -0,0 +1,101 @@
+package stream.flarebot.webhook_distributor.common;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static long percentileOf(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        return histogram.getPercentile(100);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 16; value++)
+            assertEquals(value, percentileOf(value));
+    }
+
+    @Test
+    public void reportsTheTopOfTheBucket() {
+        assertEquals(17, percentileOf(16));
+        assertEquals(17, percentileOf(17));
+        assertEquals(19, percentileOf(18));
+        assertEquals(103, percentileOf(96));
+        assertEquals(103, percentileOf(103));
+        assertEquals(111, percentileOf(104));
+        assertEquals(1023, percentileOf(1000));
+        assertEquals(1151, percentileOf(1024));
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighth() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long reported = percentileOf(value);
+            assertTrue(value + " was reported as " + reported, reported >= value);
+            assertTrue(value + " was reported as " + reported, reported - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void largestValuesDoNotOverflow() {
+        assertEquals(Long.MAX_VALUE, percentileOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, percentileOf(Long.MAX_VALUE - 1));
+        assertTrue(percentileOf(1L << 62) > 0);
+    }
+
+    @Test
+    public void percentilesCountFromTheBottom() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++)
+            histogram.record(value);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1, histogram.getPercentile(1));
+        assertEquals(51, histogram.getPercentile(50)); // 50 is in the 48-51 bucket
+        assertEquals(95, histogram.getPercentile(90)); // 90 is in the 88-95 bucket
+        assertEquals(103, histogram.getPercentile(99));
+        assertEquals(103, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesFollowTheCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            histogram.record(5);
+        histogram.record(5000);
+
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(5, histogram.getPercentile(99));
+        assertEquals(5119, histogram.getPercentile(99.5));
+    }
+
+    @Test
+    public void emptyAndNegativeAreIgnored() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void jsonHasTheSummary() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+
+        JsonObject json = histogram.toJson();
+        assertEquals(2, json.get("count").getAsLong());
+        assertEquals(3, json.get("p50").getAsLong());
+        assertEquals(7, json.get("p90").getAsLong());
+        assertEquals(7, json.get("p99").getAsLong());
+        assertEquals(7, json.get("max").getAsLong());
+    }
+}
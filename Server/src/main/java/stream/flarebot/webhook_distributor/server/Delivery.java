@@ -1,20 +1,56 @@
 package stream.flarebot.webhook_distributor.server;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
+import stream.flarebot.webhook_distributor.common.Trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Delivery {
 
+    private static final int MAX_INTERNED = 4096;
+    private static final Map<String, String> interned = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_INTERNED;
+        }
+    };
+
     private String ip;
     private String userAgent;
     private String authorization;
-    private JsonElement payload;
+    private List<PayloadArena.Payload> payloads;
+    private List<Trace> traces;
+
+    Delivery(String ip, String userAgent, String authorization, PayloadArena.Payload payload, Trace trace) {
+        this(ip, userAgent, authorization, Collections.singletonList(payload), Collections.singletonList(trace));
+    }
 
-    Delivery(String ip, String userAgent, String authorization, JsonElement payload) {
-        this.ip = ip;
-        this.userAgent = userAgent;
+    Delivery(String ip, String userAgent, String authorization, List<PayloadArena.Payload> payloads,
+             List<Trace> traces) {
+        this.ip = intern(ip);
+        this.userAgent = intern(userAgent);
         this.authorization = authorization;
-        this.payload = payload;
+        this.payloads = payloads;
+        this.traces = traces;
+    }
+
+    /**
+     * The same senders send webhooks over and over, so share their IP and user agent strings rather than keeping a
+     * copy for every queued delivery. The pool drops the least recently used values once it's full, so a burst of
+     * one-off values can't push out the senders which are still active. Authorization headers are secrets and are
+     * never kept in the pool.
+     */
+    private static String intern(String value) {
+        if (value == null)
+            return null;
+        synchronized (interned) {
+            String existing = interned.putIfAbsent(value, value);
+            return existing == null ? value : existing;
+        }
     }
 
     public String getIp() {
@@ -25,19 +61,54 @@ public class Delivery {
         return userAgent;
     }
 
-    public JsonElement getPayload() {
-        return payload;
+    public List<PayloadArena.Payload> getPayloads() {
+        return payloads;
     }
 
     public String getAuthorization() {
         return authorization;
     }
 
+    /**
+     * @return The traces of the payloads, in the same order as {@link #getPayloads()}.
+     */
+    public List<Trace> getTraces() {
+        return traces;
+    }
+
     public boolean isBatch() {
-        return payload instanceof JsonArray && ((JsonArray) payload).size() > 1;
+        return payloads.size() > 1;
+    }
+
+    /**
+     * The size of the JSON body this delivery is sent as, in bytes.
+     */
+    public long getSize() {
+        long size = isBatch() ? payloads.size() + 1 : 0; // Brackets and commas
+        for (PayloadArena.Payload payload : payloads)
+            size += payload.length();
+        return size;
+    }
+
+    /**
+     * Write the JSON body of this delivery, a batch is written as a JsonArray of the payloads.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (!isBatch()) {
+            payloads.get(0).writeTo(out);
+            return;
+        }
+        out.write('[');
+        for (int i = 0; i < payloads.size(); i++) {
+            if (i > 0)
+                out.write(',');
+            payloads.get(i).writeTo(out);
+        }
+        out.write(']');
     }
 
-    public void setPayload(JsonElement payload) {
-        this.payload = payload;
+    public void free() {
+        for (PayloadArena.Payload payload : payloads)
+            payload.free();
     }
 }
@@ -0,0 +1,155 @@
+package stream.flarebot.webhook_distributor.server;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects live deliveries for a service which uses batches and sends them as one batch once the window closes or the
+ * item or byte limit is hit, whichever comes first.
+ * <p>
+ * The window adapts to how fast webhooks are arriving, it grows from the min window towards the max window as the
+ * average gap between webhooks shrinks. A gap longer than the max window means the service has gone quiet, so the
+ * average is reset and webhooks are sent straight away without waiting at all until they speed up again.
+ * <p>
+ * The sender callback is called on the scheduler and on request threads, so it has to hand the batch off to be sent
+ * rather than sending it itself.
+ */
+public class DeliveryBatcher {
+
+    private static final double GAP_SMOOTHING = 0.25;
+
+    private final String service;
+    private final Settings settings;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<Delivery> sender;
+
+    private DeliveryQueue pending = new DeliveryQueue();
+    private ScheduledFuture<?> timer;
+    // Bumped every time a batch is drained, so a timer which fires after its batch was sent leaves the next one alone.
+    private long generation;
+
+    private long lastArrival;
+    private double averageGap;
+
+    DeliveryBatcher(String service, Settings settings, ScheduledExecutorService scheduler, Consumer<Delivery> sender) {
+        this.service = service;
+        this.settings = settings;
+        this.scheduler = scheduler;
+        this.sender = sender;
+        this.averageGap = settings.maxWindow;
+    }
+
+    /**
+     * Add a delivery to the current batch. A batch from a different sender which has to be closed first is handed to
+     * the sender callback like any other batch which isn't sent by the caller.
+     *
+     * @param delivery The delivery to add.
+     * @return The batch holding the delivery if it needs to be sent now by the caller, null if the delivery was
+     * batched.
+     */
+    Delivery add(Delivery delivery) {
+        Delivery previous = null;
+        Delivery ready = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long gap = now - lastArrival;
+            if (lastArrival == 0 || gap >= settings.maxWindow)
+                averageGap = settings.maxWindow;
+            else
+                averageGap += GAP_SMOOTHING * (gap - averageGap);
+            lastArrival = now;
+
+            // Batches share the sender information, so a delivery from someone else can't join the current batch.
+            if (!pending.isEmpty() && !sameSender(pending.getFirst(), delivery))
+                previous = drain();
+
+            pending.add(delivery);
+
+            long window = getWindow();
+            if (window == 0 || pending.size() >= settings.maxItems || pending.getBytes() >= settings.maxBytes)
+                ready = drain();
+            else if (timer == null) {
+                long batch = generation;
+                timer = scheduler.schedule(() -> flush(batch), window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (previous != null)
+            sender.accept(previous);
+        return ready;
+    }
+
+    /**
+     * The current batch window in milliseconds, 0 means deliveries are sent without waiting.
+     */
+    synchronized long getWindow() {
+        if (averageGap >= settings.maxWindow)
+            return 0;
+        long window = (long) (settings.maxWindow - averageGap);
+        return Math.max(settings.minWindow, Math.min(settings.maxWindow, window));
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    private void flush(long batch) {
+        Delivery delivery;
+        synchronized (this) {
+            if (batch != generation)
+                return;
+            timer = null;
+            delivery = drain();
+        }
+        if (delivery != null)
+            sender.accept(delivery);
+    }
+
+    private Delivery drain() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (pending.isEmpty())
+            return null;
+
+        generation++;
+        Delivery batch = pending.toDelivery();
+        pending = new DeliveryQueue();
+        return batch;
+    }
+
+    private boolean sameSender(Delivery a, Delivery b) {
+        return Objects.equals(a.getIp(), b.getIp()) && Objects.equals(a.getUserAgent(), b.getUserAgent())
+                && Objects.equals(a.getAuthorization(), b.getAuthorization());
+    }
+
+    static class Settings {
+
+        private final long minWindow;
+        private final long maxWindow;
+        private final int maxItems;
+        private final long maxBytes;
+
+        Settings(long minWindow, long maxWindow, int maxItems, long maxBytes) {
+            if (minWindow < 0 || maxWindow < minWindow)
+                throw new IllegalArgumentException("Batch window must be positive and the max above the min!");
+            if (maxItems < 1 || maxBytes < 1)
+                throw new IllegalArgumentException("Batch item and byte limits must be above 0!");
+            this.minWindow = minWindow;
+            this.maxWindow = maxWindow;
+            this.maxItems = maxItems;
+            this.maxBytes = maxBytes;
+        }
+
+        int getMaxItems() {
+            return maxItems;
+        }
+
+        long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package stream.flarebot.webhook_distributor.server;
+
+import stream.flarebot.webhook_distributor.common.Trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Deliveries waiting to be sent to a service. They are added in place and only joined into a delivery when they are
+ * sent, so a long backlog isn't copied again for every webhook added to it. This isn't thread safe, the owner of the
+ * queue guards it with its own lock.
+ */
+class DeliveryQueue {
+
+    private final Deque<PayloadArena.Payload> payloads = new ArrayDeque<>();
+    private final Deque<Trace> traces = new ArrayDeque<>();
+    private Delivery first;
+    private Delivery last;
+    private long bytes;
+
+    void add(Delivery delivery) {
+        for (PayloadArena.Payload payload : delivery.getPayloads()) {
+            payloads.add(payload);
+            bytes += payload.length();
+        }
+        traces.addAll(delivery.getTraces());
+        if (first == null)
+            first = delivery;
+        last = delivery;
+    }
+
+    /**
+     * Move everything in another queue to the end of this one, the other queue must not be used afterwards.
+     */
+    void addAll(DeliveryQueue queue) {
+        if (queue.isEmpty())
+            return;
+        payloads.addAll(queue.payloads);
+        traces.addAll(queue.traces);
+        bytes += queue.bytes;
+        if (first == null)
+            first = queue.first;
+        last = queue.last;
+    }
+
+    boolean isEmpty() {
+        return payloads.isEmpty();
+    }
+
+    int size() {
+        return payloads.size();
+    }
+
+    /**
+     * @return The size of the payloads in the queue, in bytes.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The first delivery added to the queue, null if nothing has been added.
+     */
+    Delivery getFirst() {
+        return first;
+    }
+
+    /**
+     * Take webhooks from the front of the queue, at least one is taken even if it's bigger than the byte limit. The
+     * sender information of the latest delivery is kept.
+     *
+     * @param maxItems The most webhooks to take.
+     * @param maxBytes The most payload bytes to take.
+     * @return A delivery of the webhooks taken or null if the queue is empty.
+     */
+    Delivery poll(int maxItems, long maxBytes) {
+        if (isEmpty())
+            return null;
+        List<PayloadArena.Payload> chunk = new ArrayList<>(Math.min(maxItems, payloads.size()));
+        List<Trace> chunkTraces = new ArrayList<>(Math.min(maxItems, payloads.size()));
+        long chunkBytes = 0;
+        while (!payloads.isEmpty() && chunk.size() < maxItems
+                && (chunk.isEmpty() || chunkBytes + payloads.peek().length() <= maxBytes)) {
+            PayloadArena.Payload payload = payloads.poll();
+            chunk.add(payload);
+            chunkTraces.add(traces.poll());
+            chunkBytes += payload.length();
+        }
+        bytes -= chunkBytes;
+        return new Delivery(last.getIp(), last.getUserAgent(), last.getAuthorization(), chunk, chunkTraces);
+    }
+
+    /**
+     * Join everything in the queue into one delivery, the sender information of the latest delivery is kept.
+     *
+     * @return The joined delivery or null if the queue is empty.
+     */
+    Delivery toDelivery() {
+        return poll(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+}
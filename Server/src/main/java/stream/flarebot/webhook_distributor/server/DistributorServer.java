@@ -1,25 +1,41 @@
 package stream.flarebot.webhook_distributor.server;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.ResponseBody;
+import okio.BufferedSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Response;
-import spark.Spark;
+import spark.Service;
+import stream.flarebot.webhook_distributor.common.LatencyStats;
+import stream.flarebot.webhook_distributor.common.LocalTransport;
+import stream.flarebot.webhook_distributor.common.ThreadPoolSettings;
+import stream.flarebot.webhook_distributor.common.Trace;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class DistributorServer {
@@ -29,15 +45,44 @@ public class DistributorServer {
     private final OkHttpClient client = new OkHttpClient();
 
     private int serverPort;
-
-    private Map<String, Integer> services = new HashMap<>();
-    private Map<String, Delivery> queuedDeliveries = new HashMap<>();
+    private Service http;
+    private Properties properties = new Properties();
+    private RoutingEngine routingEngine;
+    private DeliveryBatcher.Settings batchSettings;
+    private PayloadArena arena;
+    private ThreadPoolSettings threadPoolSettings;
+    private LatencyStats latencyStats;
+    private final ScheduledExecutorService batchScheduler = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(), daemonThreads("Batch-Flusher"));
+    // Batches are sent here so a slow service never holds up the batch timers or the request threads.
+    private Executor batchSender;
+
+    private Map<String, String> services = new ConcurrentHashMap<>();
+    private Map<String, Integer> servicePorts = new ConcurrentHashMap<>();
+    private Map<String, DeliveryQueue> queuedDeliveries = new ConcurrentHashMap<>();
+    private Map<String, DeliveryBatcher> batchers = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
         new DistributorServer().init(args);
     }
 
-    private void init(String[] args) {
+    /**
+     * Start the server, this can also be used to run the server in the same JVM as its services. The port is taken
+     * from the first argument or the 'port' property in the 'config.prop' file.
+     *
+     * @param args The program arguments.
+     */
+    public void init(String[] args) {
+        File config = new File("config.prop");
+        if (config.exists()) {
+            try (FileReader fr = new FileReader(config)) {
+                properties.load(fr);
+            } catch (IOException e) {
+                logger.error("Failed to load 'config.prop' file, exiting!");
+                System.exit(1);
+            }
+        }
+
         if (args.length > 0) {
             try {
                 serverPort = Integer.parseInt(args[0]);
@@ -46,17 +91,9 @@ public class DistributorServer {
                 System.exit(1);
             }
         } else {
-            File config = new File("config.prop");
             if (config.exists()) {
                 try {
-                    FileReader fr = new FileReader(config);
-                    Properties properties = new Properties();
-                    properties.load(fr);
-
                     serverPort = Integer.parseInt(properties.getProperty("port"));
-                } catch (IOException e) {
-                    logger.error("Failed to load 'config.prop' file, exiting!");
-                    System.exit(1);
                 } catch (NumberFormatException e) {
                     logger.error("Failed to parse port!");
                     System.exit(1);
@@ -71,17 +108,66 @@ public class DistributorServer {
 
         client.setConnectTimeout(1, TimeUnit.SECONDS);
 
+        try {
+            routingEngine = RoutingEngine.load(new File(properties.getProperty("routes", "routes.json")));
+            if (!routingEngine.getRules().isEmpty())
+                logger.info("Loaded " + routingEngine.getRules().size() + " routing rules");
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to load routing rules, exiting!", e);
+            System.exit(1);
+        }
+
+        try {
+            batchSettings = new DeliveryBatcher.Settings(
+                    Long.parseLong(properties.getProperty("batch.window.min", "5")),
+                    Long.parseLong(properties.getProperty("batch.window.max", "50")),
+                    Integer.parseInt(properties.getProperty("batch.max.items", "100")),
+                    Long.parseLong(properties.getProperty("batch.max.bytes", "1048576")));
+        } catch (IllegalArgumentException e) {
+            logger.error("Failed to parse batch settings! " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            arena = new PayloadArena(Long.parseLong(properties.getProperty("memory.budget", "268435456")),
+                    Integer.parseInt(properties.getProperty("memory.slab", "1048576")),
+                    Integer.parseInt(properties.getProperty("memory.block", "1024")));
+        } catch (IllegalArgumentException e) {
+            logger.error("Failed to parse memory settings! " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            threadPoolSettings = new ThreadPoolSettings(
+                    Integer.parseInt(properties.getProperty("threads.min", "-1")),
+                    Integer.parseInt(properties.getProperty("threads.max", "-1")),
+                    Integer.parseInt(properties.getProperty("threads.idle.timeout", "-1")),
+                    Integer.parseInt(properties.getProperty("threads.accept.queue", "0")),
+                    Boolean.parseBoolean(properties.getProperty("threads.virtual", "false")));
+        } catch (IllegalArgumentException e) {
+            logger.error("Failed to parse thread settings! " + e.getMessage());
+            System.exit(1);
+        }
+
+        batchSender = threadPoolSettings.isUsingVirtualThreads() ? threadPoolSettings.getBlockingExecutor()
+                : Executors.newCachedThreadPool(daemonThreads("Batch-Sender"));
+
+        try {
+            latencyStats = new LatencyStats(Long.parseLong(properties.getProperty("trace.slow.threshold", "1000")));
+        } catch (NumberFormatException e) {
+            logger.error("Failed to parse the slow trace threshold!");
+            System.exit(1);
+        }
+
         setupRoutes();
 
         logger.info("Started! Waiting for services on port " + serverPort);
     }
 
     private void setupRoutes() {
-        Spark.port(this.serverPort);
-        Spark.init();
-        Spark.awaitInitialization();
+        http = threadPoolSettings.ignite(this.serverPort);
 
-        Spark.after((req, res) -> {
+        http.after((req, res) -> {
             res.header("Content-Encoding", "gzip");
             res.header("Content-Type", "application/json");
 
@@ -89,18 +175,27 @@ public class DistributorServer {
                     res.status(), req.requestMethod(), req.ip(), req.userAgent(), req.uri()));
         });
 
-        Spark.notFound((req, res) -> {
+        http.notFound((req, res) -> {
             res.type("application/json");
             if (req.requestMethod().equalsIgnoreCase("GET"))
                 return "{\"Hello\": \"World\"}";
             return "{\"error\":\"Route not found!\"}";
         });
 
-        Spark.get("/", (req, res) -> "{\"Hello\": \"World\"}");
+        http.get("/", (req, res) -> "{\"Hello\": \"World\"}");
+
+        http.get("/stats/routes", (req, res) -> routingEngine.getStats().toString());
+
+        http.get("/stats/memory", (req, res) -> arena.getStats().toString());
+
+        http.get("/stats/latency", (req, res) -> latencyStats.toJson().toString());
 
-        Spark.put("/:service/init", (req, res) -> {
+        http.get("/stats/traces", (req, res) -> latencyStats.slowTracesToJson().toString());
+
+        http.put("/:service/init", (req, res) -> {
             String serviceName = req.params(":service");
             int port;
+            String path = "";
             if (req.body() == null || req.body().isEmpty())
                 return getBadRequest(res, "No body specified!");
 
@@ -120,11 +215,26 @@ public class DistributorServer {
             if (port < 2000)
                 return getBadRequest(res, "Port must be above 2000!");
 
-            if (!checkIfServiceIsUp(port))
+            if (element.getAsJsonObject().has("path")) {
+                path = element.getAsJsonObject().get("path").getAsString();
+                // Segments may be percent-encoded so service names with spaces or other symbols still work
+                if (!path.matches("(/([\\w.~-]|%[0-9A-Fa-f]{2})+)*"))
+                    return getBadRequest(res, "Path is not valid!");
+            }
+
+            String url = "http://localhost:" + port + path;
+            if (!checkIfServiceIsUp(url))
                 return getBadRequest(res, "Hey! This isn't a valid service! Stop trying to force start it :(");
 
-            services.put(serviceName, port);
-            logger.info("Setup service: " + serviceName + ":" + port);
+            servicePorts.put(serviceName, port);
+            services.put(serviceName, url);
+            if (element.getAsJsonObject().has("batch") && element.getAsJsonObject().get("batch").getAsBoolean())
+                batchers.computeIfAbsent(serviceName, name -> new DeliveryBatcher(name, batchSettings, batchScheduler,
+                        delivery -> batchSender.execute(() -> sendBatchedDelivery(name, delivery))));
+            else
+                batchers.remove(serviceName);
+            logger.info("Setup service: " + serviceName + ":" + port + path
+                    + (LocalTransport.isLocal(serviceName, port) ? " (local)" : ""));
 
             if (queuedDeliveries.containsKey(serviceName) && sendDelivery(serviceName))
                 logger.info("Successfully sent queued deliveries for new service!");
@@ -132,29 +242,76 @@ public class DistributorServer {
             return getSuccessRequest(res, "Setup service '" + serviceName + "' on port '" + port + "'");
         });
 
-        Spark.post("/:service", (req, res) -> {
-            String serviceName = req.params(":service");
-
+        http.post("/:service", (req, res) -> {
+            long ingest = Trace.now();
             if (req.body() == null || req.body().isEmpty())
                 return getBadRequest(res, "No body specified!");
 
-            JsonElement element = parser.parse(req.body());
-            Delivery delivery = new Delivery(req.ip(), req.userAgent(), req.headers("Authorization"), element);
+            // Validated before routing so rejected webhooks aren't counted as rule matches.
+            if (!isValidJson(req.bodyAsBytes()))
+                return getBadRequest(res, "Invalid JSON!");
+
+            String serviceName = routingEngine.route(req.params(":service"), req::headers, req.bodyAsBytes());
+
+            PayloadArena.Payload payload = arena.allocate(serviceName, req.bodyAsBytes());
+            if (payload == null) {
+                logger.warn("Payload memory budget is used up, refused webhook for " + serviceName);
+                return getFullRequest(res);
+            }
+            Trace trace = new Trace(Trace.newId(), serviceName);
+            trace.set(Trace.Stage.INGEST, ingest);
+            trace.mark(Trace.Stage.ENQUEUE);
+            latencyStats.record(trace, "ingest", Trace.Stage.INGEST, Trace.Stage.ENQUEUE);
+            Delivery delivery = new Delivery(req.ip(), req.userAgent(), req.headers("Authorization"), payload, trace);
 
             if (!services.containsKey(serviceName)) {
                 logger.warn("Got webhook event for non-active service. Queued webhook");
                 queueDelivery(serviceName, delivery);
-                return getQueuedWebhookRequest(res);
+                return getQueuedWebhookRequest(res, "Non-active service.");
+            }
+
+            DeliveryBatcher batcher = batchers.get(serviceName);
+            if (batcher != null) {
+                Delivery batch = batcher.add(delivery);
+                if (batch == null)
+                    return getBatchedWebhookRequest(res);
+
+                // Other webhooks in the batch have already been accepted, so a rejected batch is kept queued.
+                if (sendDelivery(serviceName, batch, batch.isBatch()))
+                    return getSuccessRequest(res, "Sent webhook!");
+                return batch.isBatch() ? getQueuedWebhookRequest(res, "Service rejected the batch.")
+                        : getBadRequest(res, "Malformed request JSON! Check the server logs!");
             }
             return sendDelivery(serviceName, delivery) ? getSuccessRequest(res, "Sent webhook!")
                     : getBadRequest(res, "Malformed request JSON! Check the server logs!");
         });
     }
 
-    private boolean checkIfServiceIsUp(int port) {
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Check the body is a single valid JSON value by streaming over it, this doesn't build a tree of the JSON.
+     */
+    private boolean isValidJson(byte[] body) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body),
+                StandardCharsets.UTF_8))) {
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private boolean checkIfServiceIsUp(String url) {
         try {
             com.squareup.okhttp.Response response = client.newCall(new Request.Builder()
-                    .url("http://localhost:" + port + "/ping")
+                    .url(url + "/ping")
                     .get()
                     .build()).execute();
 
@@ -176,68 +333,163 @@ public class DistributorServer {
         return res;
     }
 
-    private Response getQueuedWebhookRequest(Response res) {
+    private Response getQueuedWebhookRequest(Response res, String s) {
+        res.status(202);
+        res.body(String.format("{\"message\": \"%s Queued webhook.\"}", s));
+        return res;
+    }
+
+    private Response getBatchedWebhookRequest(Response res) {
         res.status(202);
-        res.body("{\"message\": \"Non-active service. Queued webhook.\"}");
+        res.body("{\"message\": \"Batched webhook.\"}");
         return res;
     }
 
-    private void queueDelivery(String serviceName, Delivery delivery) {
-        if (queuedDeliveries.containsKey(serviceName)) {
-            Delivery queuedDelivery = queuedDeliveries.get(serviceName);
+    private Response getFullRequest(Response res) {
+        res.status(503);
+        res.body("{\"error\": \"Too many queued webhooks. Try again later.\"}");
+        return res;
+    }
 
-            JsonArray array = queuedDelivery.getPayload().isJsonArray() ? queuedDelivery.getPayload().getAsJsonArray()
-                    : new JsonArray();
-            array.add(delivery.getPayload());
-            delivery.setPayload(array);
+    private synchronized void queueDelivery(String serviceName, Delivery delivery) {
+        queuedDeliveries.computeIfAbsent(serviceName, k -> new DeliveryQueue()).add(delivery);
+    }
+
+    private void sendBatchedDelivery(String service, Delivery delivery) {
+        if (!services.containsKey(service)) {
+            logger.warn("Service went down before its batch was sent. Queued webhooks");
+            queueDelivery(service, delivery);
+            return;
         }
-        queuedDeliveries.put(serviceName, delivery);
+        sendDelivery(service, delivery, true);
     }
 
+    /**
+     * Send everything queued for a service. The backlog is sent in batches no bigger than the batch limits so it's
+     * never all read onto the heap at once, if the service goes down part way through the rest stays queued.
+     */
     private boolean sendDelivery(String service) {
-        if (!services.containsKey(service) && !queuedDeliveries.containsKey(service))
+        DeliveryQueue queue = takeQueuedDeliveries(service);
+        if (queue == null)
             return false;
 
-        Delivery delivery = this.queuedDeliveries.get(service);
-        this.queuedDeliveries.remove(service);
-        return sendDelivery(service, delivery);
+        boolean sent = true;
+        while (!queue.isEmpty()) {
+            sent &= sendDelivery(service, queue.poll(batchSettings.getMaxItems(), batchSettings.getMaxBytes()));
+            if (!services.containsKey(service) && !queue.isEmpty()) {
+                requeueDeliveries(service, queue);
+                return false;
+            }
+        }
+        return sent;
     }
 
     /**
-     * Send a JsonElement payload to the service.
+     * Take everything queued for a service, this holds the same lock as {@link #queueDelivery} so a webhook queued
+     * at the same time either makes it into the taken queue or stays queued.
+     */
+    private synchronized DeliveryQueue takeQueuedDeliveries(String service) {
+        return queuedDeliveries.remove(service);
+    }
+
+    private synchronized void requeueDeliveries(String service, DeliveryQueue queue) {
+        queuedDeliveries.computeIfAbsent(service, k -> new DeliveryQueue()).addAll(queue);
+    }
+
+    /**
+     * Send a delivery to the service. The delivery is freed once it has been sent or rejected by the service and
+     * queued again if the service couldn't be reached.
      *
      * @param service Service to send the payload to.
-     * @param delivery The payload to send, use a JsonObject or JsonArray here.
+     * @param delivery The delivery to send.
      * @return Returns if the delivery was a success.
      */
     private boolean sendDelivery(String service, Delivery delivery) {
-        if (!services.containsKey(service))
+        return sendDelivery(service, delivery, false);
+    }
+
+    /**
+     * @param keepRejected If the delivery should be queued rather than dropped when the service rejects it, used for
+     *                     webhooks which were accepted before they were sent.
+     */
+    private boolean sendDelivery(String service, Delivery delivery, boolean keepRejected) {
+        if (!services.containsKey(service)) {
+            queueDelivery(service, delivery);
             return false;
+        }
+
+        try {
+            return forwardDelivery(service, delivery, keepRejected);
+        } catch (RuntimeException e) {
+            // Anything unexpected still has to give the payloads back to the arena or they are lost for good.
+            logger.error("Failed to send a delivery to " + service + "!", e);
+            if (keepRejected)
+                queueDelivery(service, delivery);
+            else
+                delivery.free();
+            return false;
+        }
+    }
+
+    private boolean forwardDelivery(String service, Delivery delivery, boolean keepRejected) {
 
-        String url = "http://localhost:" + services.get(service) + (delivery.isBatch() ? "/batch" : "/");
+        // Marked again on every attempt, the stages are only recorded once the delivery is done with.
+        for (Trace trace : delivery.getTraces())
+            trace.mark(Trace.Stage.FORWARD);
+        int port = servicePorts.getOrDefault(service, -1);
+        if (LocalTransport.isLocal(service, port))
+            return sendLocalDelivery(service, port, delivery, keepRejected);
+
+        String url = services.get(service) + (delivery.isBatch() ? "/batch" : "");
         logger.info("Sending delivery to " + url);
 
         try {
             Request.Builder builder = new Request.Builder().url(url)
-                    .addHeader("User-Agent", delivery.getUserAgent())
-                    .addHeader("Sent-By", delivery.getIp())
-                    .post(RequestBody.create(MediaType.parse("application/json"), delivery.getPayload().toString()));
-
-            if (delivery.getAuthorization() != null && !delivery.getAuthorization().isEmpty())
-                builder.addHeader("Authorization", delivery.getAuthorization());
+                    .post(new RequestBody() {
+                        @Override
+                        public MediaType contentType() {
+                            return MediaType.parse("application/json");
+                        }
+
+                        @Override
+                        public long contentLength() {
+                            return delivery.getSize();
+                        }
+
+                        @Override
+                        public void writeTo(BufferedSink sink) throws IOException {
+                            delivery.writeTo(sink.outputStream());
+                        }
+                    });
+
+            addHeader(builder, "User-Agent", delivery.getUserAgent());
+            addHeader(builder, "Sent-By", delivery.getIp());
+            addHeader(builder, "Authorization", delivery.getAuthorization());
+            Trace.toHeaders(Trace.oldest(delivery.getTraces()), (name, value) -> addHeader(builder, name, value));
             com.squareup.okhttp.Response response = client.newCall(builder.build()).execute();
+            long responded = Trace.now();
 
             if (response.code() != 200) {
                 ResponseBody body = response.body();
                 logger.error("Failed to send a successful webhook! Code: " + response.code() + ", Message: "
                         + response.message() + ", JSON: " + body.string()
-                        + "\nOur JSON: " + delivery.getPayload().toString());
+                        + "\nOur delivery: " + describe(delivery));
                 body.close();
+                if (keepRejected) {
+                    logger.error("Kept the rejected webhooks queued until the service is set up again.");
+                    queueDelivery(service, delivery);
+                } else {
+                    finishTraces(delivery, responded);
+                    delivery.free();
+                }
                 return false;
             }
+            response.body().close();
+            finishTraces(delivery, responded);
+            delivery.free();
             return true;
         } catch (IOException e) {
-            if (e.getMessage().toLowerCase().contains("failed to connect")) {
+            if (e.getMessage() != null && e.getMessage().toLowerCase().contains("failed to connect")) {
                 logger.error("Failed to connect to the client, queued WebHook!");
                 this.services.remove(service); // It is likely down, so let's remove it.
             } else
@@ -246,4 +498,88 @@ public class DistributorServer {
             return false;
         }
     }
+
+    /**
+     * Only the size of a delivery is logged, a backlog can be far too big to turn back into text.
+     */
+    private String describe(Delivery delivery) {
+        return delivery.getPayloads().size() + " webhooks, " + delivery.getSize() + " bytes";
+    }
+
+    /**
+     * Add a header which was copied from the webhook, headers without a value or with a value OkHttp won't send are
+     * left out rather than failing the delivery.
+     */
+    private void addHeader(Request.Builder builder, String name, String value) {
+        if (value == null || value.isEmpty())
+            return;
+        try {
+            builder.addHeader(name, value);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Left out the " + name + " header from a delivery! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hand a delivery to a service running in this JVM. The payloads are parsed straight from the arena, no HTTP
+     * request or JSON text is made. The delivery is only freed once the service has taken it, it's queued again if
+     * the service stopped before it could be handed over.
+     */
+    private boolean sendLocalDelivery(String service, int port, Delivery delivery, boolean keepRejected) {
+        logger.info("Sending delivery to local service " + service);
+        // The parse is the service's receive and parse stages on this path, so it's stamped here rather than by the
+        // client.
+        long received = Trace.now();
+        List<JsonElement> payloads = new ArrayList<>(delivery.getPayloads().size());
+        try {
+            for (PayloadArena.Payload payload : delivery.getPayloads())
+                payloads.add(parser.parse(new InputStreamReader(payload.newInputStream(), StandardCharsets.UTF_8)));
+        } catch (JsonParseException e) {
+            logger.error("Failed to parse a queued payload for local service " + service + "! Delivery: "
+                    + describe(delivery));
+            delivery.free();
+            return false;
+        }
+        long parsed = Trace.now();
+        for (Trace trace : delivery.getTraces()) {
+            trace.set(Trace.Stage.RECEIVE, received);
+            trace.set(Trace.Stage.PARSE, parsed);
+        }
+
+        LocalTransport.Result result = LocalTransport.deliver(service, port, payloads, delivery.getIp(),
+                delivery.getUserAgent(), delivery.getAuthorization(), delivery.getTraces());
+        if (result == LocalTransport.Result.NOT_LOCAL) {
+            logger.error("Local service " + service + " stopped before the delivery was handed over, queued WebHook!");
+            this.services.remove(service);
+            queueDelivery(service, delivery);
+            return false;
+        }
+        long handled = Trace.now();
+
+        if (result == LocalTransport.Result.FAILED && keepRejected) {
+            logger.error("Kept the rejected webhooks queued until the service is set up again.");
+            queueDelivery(service, delivery);
+        } else {
+            finishTraces(delivery, handled);
+            delivery.free();
+        }
+        return result == LocalTransport.Result.DELIVERED;
+    }
+
+    /**
+     * Record how long the webhooks waited and how long the service took to take them, and keep their traces if they
+     * were slow. Only called once a delivery won't be queued again, so each webhook is recorded once however many
+     * times it was sent.
+     *
+     * @param now When the service took the delivery, in microseconds since the epoch.
+     */
+    private void finishTraces(Delivery delivery, long now) {
+        for (Trace trace : delivery.getTraces()) {
+            latencyStats.record(trace, "queue", Trace.Stage.ENQUEUE, Trace.Stage.FORWARD);
+            if (trace.get(Trace.Stage.FORWARD) > 0)
+                latencyStats.record(trace.getService(), "forward", now - trace.get(Trace.Stage.FORWARD));
+            latencyStats.record(trace.getService(), "total", now - trace.get(Trace.Stage.INGEST));
+            latencyStats.sample(trace, now - trace.get(Trace.Stage.INGEST));
+        }
+    }
 }
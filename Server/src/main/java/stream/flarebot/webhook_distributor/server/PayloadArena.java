@@ -0,0 +1,194 @@
+package stream.flarebot.webhook_distributor.server;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores webhook payloads off the heap so big backlogs don't fill up the old generation.
+ * <p>
+ * Memory is taken from the OS in direct {@link ByteBuffer} slabs which are split into fixed size blocks, a payload is
+ * stored in as many blocks as it needs. Freed blocks go back to a pool and are reused, slabs are never given back. One
+ * budget is shared by every service and is checked when a payload is allocated, so once it's used up new webhooks are
+ * refused rather than growing the memory any further.
+ */
+public class PayloadArena {
+
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int maxBlocks;
+
+    private final ByteBuffer[] slabs;
+    private int slabCount;
+    private int totalBlocks;
+
+    private final int[] freeBlocks;
+    private int freeCount;
+    private int usedBlocks;
+
+    private final Map<String, AtomicLong> usage = new ConcurrentHashMap<>();
+
+    /**
+     * @param budget    The most memory which can be used by payloads, in bytes.
+     * @param slabSize  The size of each slab taken from the OS, in bytes.
+     * @param blockSize The size of each block a slab is split into, in bytes.
+     */
+    PayloadArena(long budget, int slabSize, int blockSize) {
+        if (blockSize < 1 || slabSize < blockSize)
+            throw new IllegalArgumentException("The slab size must be above the block size!");
+        if (budget < slabSize || budget / blockSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The memory budget must be above the slab size!");
+        this.blockSize = blockSize;
+        this.blocksPerSlab = slabSize / blockSize;
+        this.maxBlocks = (int) (budget / blockSize);
+        this.slabs = new ByteBuffer[(maxBlocks + blocksPerSlab - 1) / blocksPerSlab];
+        this.freeBlocks = new int[maxBlocks];
+    }
+
+    /**
+     * Copy a payload into the arena.
+     *
+     * @param service The service the payload is for, used to report the memory usage.
+     * @param data    The raw payload.
+     * @return The stored payload or null if the memory budget doesn't have room for it.
+     */
+    Payload allocate(String service, byte[] data) {
+        int needed = Math.max(1, (data.length + blockSize - 1) / blockSize);
+        int[] blocks = new int[needed];
+        synchronized (this) {
+            if (usedBlocks + needed > maxBlocks)
+                return null;
+            while (freeCount < needed)
+                addSlab();
+            for (int i = 0; i < needed; i++)
+                blocks[i] = freeBlocks[--freeCount];
+            usedBlocks += needed;
+        }
+
+        // The blocks belong to this payload now, so they can be filled without holding the lock.
+        for (int i = 0, offset = 0; offset < data.length; i++, offset += blockSize)
+            block(blocks[i]).put(data, offset, Math.min(blockSize, data.length - offset));
+
+        usage.computeIfAbsent(service, k -> new AtomicLong()).addAndGet((long) needed * blockSize);
+        return new Payload(service, blocks, data.length);
+    }
+
+    private synchronized void release(Payload payload) {
+        for (int block : payload.blocks)
+            freeBlocks[freeCount++] = block;
+        usedBlocks -= payload.blocks.length;
+        usage.get(payload.service).addAndGet(-(long) payload.blocks.length * blockSize);
+    }
+
+    private void addSlab() {
+        int blocks = Math.min(blocksPerSlab, maxBlocks - totalBlocks);
+        slabs[slabCount] = ByteBuffer.allocateDirect(blocks * blockSize);
+        for (int i = blocks - 1; i >= 0; i--)
+            freeBlocks[freeCount++] = slabCount * blocksPerSlab + i;
+        slabCount++;
+        totalBlocks += blocks;
+    }
+
+    private ByteBuffer block(int block) {
+        ByteBuffer buffer = slabs[block / blocksPerSlab].duplicate();
+        buffer.position((block % blocksPerSlab) * blockSize);
+        return buffer;
+    }
+
+    public synchronized JsonObject getStats() {
+        JsonObject services = new JsonObject();
+        for (Map.Entry<String, AtomicLong> entry : usage.entrySet())
+            if (entry.getValue().get() > 0)
+                services.addProperty(entry.getKey(), entry.getValue().get());
+
+        JsonObject stats = new JsonObject();
+        stats.addProperty("budget", (long) maxBlocks * blockSize);
+        stats.addProperty("used", (long) usedBlocks * blockSize);
+        stats.addProperty("reserved", (long) totalBlocks * blockSize);
+        stats.add("services", services);
+        return stats;
+    }
+
+    /**
+     * A payload stored in the arena, it must be freed once it has been delivered or dropped.
+     */
+    public class Payload {
+
+        private final String service;
+        private final int[] blocks;
+        private final int length;
+        private boolean freed;
+
+        private Payload(String service, int[] blocks, int length) {
+            this.service = service;
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public synchronized void writeTo(OutputStream out) throws IOException {
+            if (freed)
+                throw new IllegalStateException("Payload has already been freed!");
+            byte[] chunk = new byte[Math.min(blockSize, length)];
+            for (int i = 0, offset = 0; offset < length; i++, offset += blockSize) {
+                int size = Math.min(blockSize, length - offset);
+                block(blocks[i]).get(chunk, 0, size);
+                out.write(chunk, 0, size);
+            }
+        }
+
+        /**
+         * Read the payload straight from the arena, the payload must not be freed while the stream is being read.
+         */
+        public InputStream newInputStream() {
+            if (freed)
+                throw new IllegalStateException("Payload has already been freed!");
+            return new InputStream() {
+                private int position;
+
+                @Override
+                public int read() {
+                    if (position >= length)
+                        return -1;
+                    ByteBuffer buffer = block(blocks[position / blockSize]);
+                    return buffer.get(buffer.position() + position++ % blockSize) & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int size) {
+                    if (size == 0)
+                        return 0;
+                    if (position >= length)
+                        return -1;
+                    size = Math.min(size, Math.min(length - position, blockSize - position % blockSize));
+                    ByteBuffer buffer = block(blocks[position / blockSize]);
+                    buffer.position(buffer.position() + position % blockSize);
+                    buffer.get(bytes, offset, size);
+                    position += size;
+                    return size;
+                }
+
+                @Override
+                public int available() {
+                    return length - position;
+                }
+            };
+        }
+
+        public synchronized void free() {
+            if (!freed) {
+                freed = true;
+                release(this);
+            }
+        }
+    }
+}
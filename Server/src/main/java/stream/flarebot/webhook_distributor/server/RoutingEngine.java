@@ -0,0 +1,252 @@
+package stream.flarebot.webhook_distributor.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Routes webhooks to a different service based on their headers and JSON content.
+ * <p>
+ * The rules are compiled once into a table per source service. Every distinct header and JSON field path in a table
+ * gets its own slot and all the JSON paths are merged into one tree, so a request only has its headers looked up once
+ * and its body scanned once. The body is scanned with a streaming reader straight from the raw bytes, anything which
+ * isn't part of a rule is skipped and the scan stops as soon as every path has been found.
+ */
+public class RoutingEngine {
+
+    private final List<RoutingRule> rules;
+    private final Map<String, RouteTable> tables = new HashMap<>();
+
+    RoutingEngine(List<RoutingRule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+
+        Map<String, List<RoutingRule>> bySource = new LinkedHashMap<>();
+        for (RoutingRule rule : rules)
+            bySource.computeIfAbsent(rule.getFrom(), k -> new ArrayList<>()).add(rule);
+        for (Map.Entry<String, List<RoutingRule>> entry : bySource.entrySet())
+            tables.put(entry.getKey(), new RouteTable(entry.getValue()));
+    }
+
+    /**
+     * Load the routing rules from a JSON file containing an array of rules, see {@link RoutingRule#fromJson}.
+     * An engine without any rules is returned if the file doesn't exist.
+     *
+     * @param file The file to load the rules from.
+     * @return The compiled RoutingEngine.
+     * @throws IOException If the file could not be read.
+     */
+    static RoutingEngine load(File file) throws IOException {
+        List<RoutingRule> rules = new ArrayList<>();
+        if (file.exists()) {
+            try (Reader reader = new FileReader(file)) {
+                JsonElement element = new JsonParser().parse(reader);
+                if (!element.isJsonArray())
+                    throw new IllegalArgumentException("Routing rules need to be a JsonArray!");
+                for (JsonElement rule : element.getAsJsonArray())
+                    rules.add(RoutingRule.fromJson(rule.getAsJsonObject()));
+            }
+        }
+        return new RoutingEngine(rules);
+    }
+
+    public List<RoutingRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Find the service a webhook should be sent to.
+     *
+     * @param service The service the webhook was sent to.
+     * @param headers Looks up a request header by name.
+     * @param body    The raw request body.
+     * @return The service of the first matching rule or the original service if no rule matches.
+     */
+    public String route(String service, Function<String, String> headers, byte[] body) {
+        RouteTable table = tables.get(service);
+        if (table == null)
+            return service;
+
+        String[] headerValues = new String[table.headerNames.length];
+        for (int i = 0; i < headerValues.length; i++)
+            headerValues[i] = headers.apply(table.headerNames[i]);
+
+        String[] fieldValues = null;
+        for (RoutingRule rule : table.rules) {
+            if (!rule.matchesHeaders(headerValues))
+                continue;
+            if (rule.needsBody()) {
+                if (fieldValues == null)
+                    fieldValues = table.extract(body);
+                if (!rule.matchesFields(fieldValues))
+                    continue;
+            }
+            rule.recordMatch();
+            return rule.getTo();
+        }
+        return service;
+    }
+
+    public JsonObject getStats() {
+        JsonArray array = new JsonArray();
+        for (RoutingRule rule : rules) {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", rule.getName());
+            object.addProperty("from", rule.getFrom());
+            object.addProperty("to", rule.getTo());
+            object.addProperty("matches", rule.getMatches());
+            array.add(object);
+        }
+        JsonObject stats = new JsonObject();
+        stats.add("rules", array);
+        return stats;
+    }
+
+    private static class RouteTable {
+
+        private final RoutingRule[] rules;
+        private final String[] headerNames;
+        private final PathNode root = new PathNode();
+        private final int paths;
+
+        RouteTable(List<RoutingRule> rules) {
+            this.rules = rules.toArray(new RoutingRule[0]);
+
+            Map<String, Integer> headerSlots = new LinkedHashMap<>();
+            Map<String, Integer> pathSlots = new HashMap<>();
+            for (RoutingRule rule : rules) {
+                rule.headerSlots = new int[rule.getHeaders().size()];
+                rule.headerValues = new String[rule.getHeaders().size()];
+                int i = 0;
+                for (Map.Entry<String, String> header : rule.getHeaders().entrySet()) {
+                    rule.headerSlots[i] = headerSlots.computeIfAbsent(header.getKey().toLowerCase(),
+                            k -> headerSlots.size());
+                    rule.headerValues[i++] = header.getValue();
+                }
+
+                rule.fieldSlots = new int[rule.getFields().size()];
+                rule.fieldValues = new String[rule.getFields().size()];
+                i = 0;
+                for (Map.Entry<String, String> field : rule.getFields().entrySet()) {
+                    Integer slot = pathSlots.get(field.getKey());
+                    if (slot == null) {
+                        slot = pathSlots.size();
+                        pathSlots.put(field.getKey(), slot);
+                        root.add(field.getKey().split("\\."), 0, slot);
+                    }
+                    rule.fieldSlots[i] = slot;
+                    rule.fieldValues[i++] = field.getValue();
+                }
+            }
+            this.headerNames = headerSlots.keySet().toArray(new String[0]);
+            this.paths = pathSlots.size();
+        }
+
+        /**
+         * Scan the body once and pull out the value of every JSON path in this table. Paths which aren't found or
+         * don't point to a primitive are left as null, as is everything if the body isn't valid JSON.
+         */
+        String[] extract(byte[] body) {
+            Extraction extraction = new Extraction(paths);
+            try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body),
+                    StandardCharsets.UTF_8))) {
+                reader.setLenient(true);
+                extraction.visit(reader, root);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                // Malformed body, nothing further can be matched.
+            }
+            return extraction.values;
+        }
+    }
+
+    private static class PathNode {
+
+        private final Map<String, PathNode> children = new HashMap<>();
+        private int slot = -1;
+
+        void add(String[] path, int depth, int slot) {
+            if (depth == path.length) {
+                this.slot = slot;
+                return;
+            }
+            children.computeIfAbsent(path[depth], k -> new PathNode()).add(path, depth + 1, slot);
+        }
+    }
+
+    private static class Extraction {
+
+        private final String[] values;
+        private int remaining;
+
+        Extraction(int paths) {
+            this.values = new String[paths];
+            this.remaining = paths;
+        }
+
+        /**
+         * Visit the next value in the reader. Returns false once every path has been found so the caller can stop
+         * reading the rest of the body.
+         */
+        boolean visit(JsonReader reader, PathNode node) throws IOException {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT && !node.children.isEmpty()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    PathNode child = node.children.get(reader.nextName());
+                    if (child == null)
+                        reader.skipValue();
+                    else if (!visit(reader, child))
+                        return false;
+                }
+                reader.endObject();
+            } else if (token == JsonToken.BEGIN_ARRAY && !node.children.isEmpty()) {
+                reader.beginArray();
+                int index = 0;
+                while (reader.hasNext()) {
+                    PathNode child = node.children.get(Integer.toString(index++));
+                    if (child == null)
+                        reader.skipValue();
+                    else if (!visit(reader, child))
+                        return false;
+                }
+                reader.endArray();
+            } else if (node.slot >= 0 && token != JsonToken.BEGIN_OBJECT && token != JsonToken.BEGIN_ARRAY) {
+                String value;
+                switch (token) {
+                    case BOOLEAN:
+                        value = Boolean.toString(reader.nextBoolean());
+                        break;
+                    case NULL:
+                        reader.nextNull();
+                        value = "null";
+                        break;
+                    default:
+                        value = reader.nextString();
+                }
+                if (values[node.slot] == null) {
+                    values[node.slot] = value;
+                    return --remaining > 0;
+                }
+            } else
+                reader.skipValue();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package stream.flarebot.webhook_distributor.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single content based routing rule. A rule applies to webhooks sent to the {@code from} service and, if every
+ * header and JSON field condition matches, sends the webhook to the {@code to} service instead.
+ */
+public class RoutingRule {
+
+    private final String name;
+    private final String from;
+    private final String to;
+    private final Map<String, String> headers;
+    private final Map<String, String> fields;
+
+    private final AtomicLong matches = new AtomicLong();
+
+    // Filled in by the RoutingEngine when the rule is compiled.
+    int[] headerSlots;
+    String[] headerValues;
+    int[] fieldSlots;
+    String[] fieldValues;
+
+    RoutingRule(String name, String from, String to, Map<String, String> headers, Map<String, String> fields) {
+        this.name = name;
+        this.from = from;
+        this.to = to;
+        this.headers = headers;
+        this.fields = fields;
+    }
+
+    /**
+     * Create a rule from its JSON definition, for example:
+     * <pre>
+     * {"name": "github-push", "from": "github", "to": "github-push", "headers": {"X-GitHub-Event": "push"},
+     *  "json": {"repository.full_name": "FlareBot/FlareBot"}}
+     * </pre>
+     * JSON field paths are separated by dots, array elements are selected with their index.
+     *
+     * @param object The JSON definition of the rule.
+     * @return The parsed rule.
+     */
+    static RoutingRule fromJson(JsonObject object) {
+        if (!object.has("from") || !object.has("to"))
+            throw new IllegalArgumentException("Routing rule needs a 'from' and 'to' service! Rule: " + object);
+
+        String from = object.get("from").getAsString();
+        String to = object.get("to").getAsString();
+        String name = object.has("name") ? object.get("name").getAsString() : from + "->" + to;
+        return new RoutingRule(name, from, to, toMap(object.get("headers")), toMap(object.get("json")));
+    }
+
+    private static Map<String, String> toMap(JsonElement element) {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (element != null && element.isJsonObject())
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet())
+                map.put(entry.getKey(), entry.getValue().getAsString());
+        return map;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    public long getMatches() {
+        return matches.get();
+    }
+
+    boolean needsBody() {
+        return fieldSlots.length > 0;
+    }
+
+    boolean matchesHeaders(String[] values) {
+        for (int i = 0; i < headerSlots.length; i++)
+            if (values[headerSlots[i]] == null || !values[headerSlots[i]].equalsIgnoreCase(headerValues[i]))
+                return false;
+        return true;
+    }
+
+    boolean matchesFields(String[] values) {
+        for (int i = 0; i < fieldSlots.length; i++)
+            if (!fieldValues[i].equals(values[fieldSlots[i]]))
+                return false;
+        return true;
+    }
+
+    void recordMatch() {
+        matches.incrementAndGet();
+    }
+}
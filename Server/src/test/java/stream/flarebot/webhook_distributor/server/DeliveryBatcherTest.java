@@ -0,0 +1,145 @@
+package stream.flarebot.webhook_distributor.server;
+
+import org.junit.After;
+import org.junit.Test;
+import stream.flarebot.webhook_distributor.common.Trace;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryBatcherTest {
+
+    private final PayloadArena arena = new PayloadArena(1 << 20, 1 << 16, 64);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final BlockingQueue<Delivery> sent = new LinkedBlockingQueue<>();
+
+    @After
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private DeliveryBatcher batcher(long minWindow, long maxWindow, int maxItems, long maxBytes) {
+        return new DeliveryBatcher("test", new DeliveryBatcher.Settings(minWindow, maxWindow, maxItems, maxBytes),
+                scheduler, sent::add);
+    }
+
+    private Delivery delivery(String userAgent, int size) {
+        return new Delivery("127.0.0.1", userAgent, null, arena.allocate("test", new byte[size]),
+                new Trace(Trace.newId(), "test"));
+    }
+
+    private Delivery delivery() {
+        return delivery("test", 10);
+    }
+
+    @Test
+    public void sendsStraightAwayWhenIdle() {
+        DeliveryBatcher batcher = batcher(0, 1000, 100, 1 << 20);
+
+        assertEquals(0, batcher.getWindow());
+        Delivery ready = batcher.add(delivery());
+        assertNotNull(ready);
+        assertEquals(1, ready.getPayloads().size());
+    }
+
+    @Test
+    public void windowGrowsAsWebhooksSpeedUp() {
+        DeliveryBatcher batcher = batcher(0, 1000, 100, 1 << 20);
+        batcher.add(delivery());
+
+        long previous = 0;
+        for (int i = 0; i < 4; i++) {
+            assertNull(batcher.add(delivery()));
+            long window = batcher.getWindow();
+            assertTrue("Window " + window + " should be above " + previous, window > previous);
+            assertTrue(window < 1000);
+            previous = window;
+        }
+    }
+
+    @Test
+    public void windowIsClampedToTheMin() {
+        DeliveryBatcher batcher = batcher(600, 1000, 100, 1 << 20);
+        batcher.add(delivery());
+        batcher.add(delivery());
+
+        // The average gap only dropped to about 750ms, so the window would be 250ms without the min.
+        assertEquals(600, batcher.getWindow());
+    }
+
+    @Test
+    public void quietServiceResetsTheWindow() throws InterruptedException {
+        DeliveryBatcher batcher = batcher(0, 50, 100, 1 << 20);
+        batcher.add(delivery());
+        batcher.add(delivery());
+        assertTrue(batcher.getWindow() > 0);
+
+        Thread.sleep(100);
+        assertNotNull(batcher.add(delivery()));
+        assertEquals(0, batcher.getWindow());
+    }
+
+    @Test
+    public void flushesOnceTheWindowCloses() throws InterruptedException {
+        DeliveryBatcher batcher = batcher(100, 1000, 100, 1 << 20);
+        batcher.add(delivery());
+        assertNull(batcher.add(delivery()));
+        assertNull(batcher.add(delivery()));
+        assertTrue(sent.isEmpty());
+
+        Delivery batch = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.getPayloads().size());
+        assertNull(sent.poll(batcher.getWindow() + 200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void sendsOnceTheItemLimitIsHit() {
+        DeliveryBatcher batcher = batcher(5000, 10000, 3, 1 << 20);
+        batcher.add(delivery());
+
+        assertNull(batcher.add(delivery()));
+        assertNull(batcher.add(delivery()));
+        Delivery ready = batcher.add(delivery());
+        assertNotNull(ready);
+        assertEquals(3, ready.getPayloads().size());
+    }
+
+    @Test
+    public void sendsOnceTheByteLimitIsHit() {
+        DeliveryBatcher batcher = batcher(5000, 10000, 100, 100);
+        batcher.add(delivery());
+
+        assertNull(batcher.add(delivery("test", 60)));
+        Delivery ready = batcher.add(delivery("test", 40));
+        assertNotNull(ready);
+        assertEquals(2, ready.getPayloads().size());
+    }
+
+    @Test
+    public void newSenderClosesTheBatch() {
+        DeliveryBatcher batcher = batcher(5000, 10000, 100, 1 << 20);
+        batcher.add(delivery("first", 10));
+        assertNull(batcher.add(delivery("first", 10)));
+        assertNull(batcher.add(delivery("first", 10)));
+
+        assertNull(batcher.add(delivery("second", 10)));
+        Delivery previous = sent.poll();
+        assertNotNull(previous);
+        assertEquals(2, previous.getPayloads().size());
+        assertEquals("first", previous.getUserAgent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxWindowMustBeAboveTheMin() {
+        new DeliveryBatcher.Settings(100, 50, 10, 10);
+    }
+}
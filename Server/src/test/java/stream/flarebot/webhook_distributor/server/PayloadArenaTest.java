@@ -0,0 +1,155 @@
+package stream.flarebot.webhook_distributor.server;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PayloadArenaTest {
+
+    private static final int BLOCK = 16;
+    private static final int SLAB = 4 * BLOCK;
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) ('a' + i % 26);
+        return data;
+    }
+
+    private static long stat(PayloadArena arena, String name) {
+        return arena.getStats().get(name).getAsLong();
+    }
+
+    @Test
+    public void roundsPayloadsUpToWholeBlocks() {
+        PayloadArena arena = new PayloadArena(4 * SLAB, SLAB, BLOCK);
+
+        arena.allocate("a", bytes(BLOCK));
+        assertEquals(BLOCK, stat(arena, "used"));
+        arena.allocate("a", bytes(BLOCK + 1));
+        assertEquals(3 * BLOCK, stat(arena, "used"));
+        arena.allocate("a", new byte[0]);
+        assertEquals(4 * BLOCK, stat(arena, "used"));
+    }
+
+    @Test
+    public void reservesSlabsOnlyWhenNeeded() {
+        PayloadArena arena = new PayloadArena(4 * SLAB, SLAB, BLOCK);
+        assertEquals(0, stat(arena, "reserved"));
+
+        arena.allocate("a", bytes(BLOCK));
+        assertEquals(SLAB, stat(arena, "reserved"));
+        arena.allocate("a", bytes(4 * BLOCK));
+        assertEquals(2 * SLAB, stat(arena, "reserved"));
+        assertEquals(4 * SLAB, stat(arena, "budget"));
+    }
+
+    @Test
+    public void refusesPayloadsOverTheBudget() {
+        PayloadArena arena = new PayloadArena(SLAB, SLAB, BLOCK);
+
+        assertNull(arena.allocate("a", bytes(SLAB + 1)));
+        assertNotNull(arena.allocate("a", bytes(3 * BLOCK)));
+        assertNull(arena.allocate("a", bytes(BLOCK + 1)));
+        assertNotNull(arena.allocate("a", bytes(BLOCK)));
+        assertNull(arena.allocate("a", new byte[0]));
+        assertEquals(SLAB, stat(arena, "used"));
+    }
+
+    @Test
+    public void freedBlocksAreReused() {
+        PayloadArena arena = new PayloadArena(SLAB, SLAB, BLOCK);
+        PayloadArena.Payload first = arena.allocate("a", bytes(SLAB));
+        assertNull(arena.allocate("a", bytes(1)));
+
+        first.free();
+        assertEquals(0, stat(arena, "used"));
+        PayloadArena.Payload second = arena.allocate("a", bytes(SLAB));
+        assertNotNull(second);
+        assertEquals(SLAB, stat(arena, "used"));
+        assertEquals(SLAB, stat(arena, "reserved"));
+    }
+
+    @Test
+    public void freeingTwiceOnlyReleasesOnce() {
+        PayloadArena arena = new PayloadArena(SLAB, SLAB, BLOCK);
+        PayloadArena.Payload payload = arena.allocate("a", bytes(BLOCK));
+        arena.allocate("a", bytes(BLOCK));
+
+        payload.free();
+        payload.free();
+        assertEquals(BLOCK, stat(arena, "used"));
+    }
+
+    @Test
+    public void tracksUsageByService() {
+        PayloadArena arena = new PayloadArena(4 * SLAB, SLAB, BLOCK);
+        PayloadArena.Payload a = arena.allocate("a", bytes(BLOCK + 1));
+        arena.allocate("b", bytes(BLOCK));
+
+        JsonObject services = arena.getStats().getAsJsonObject("services");
+        assertEquals(2 * BLOCK, services.get("a").getAsLong());
+        assertEquals(BLOCK, services.get("b").getAsLong());
+
+        a.free();
+        assertFalse(arena.getStats().getAsJsonObject("services").has("a"));
+    }
+
+    @Test
+    public void readsBackAcrossBlocksAndSlabs() throws IOException {
+        PayloadArena arena = new PayloadArena(4 * SLAB, SLAB, BLOCK);
+        arena.allocate("a", bytes(BLOCK / 2)); // So the payload doesn't start on a slab boundary
+        byte[] data = bytes(SLAB + BLOCK / 2);
+        PayloadArena.Payload payload = arena.allocate("a", data);
+        assertEquals(data.length, payload.length());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        payload.writeTo(out);
+        assertArrayEquals(data, out.toByteArray());
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream in = payload.newInputStream()) {
+            int first = in.read();
+            read.write(first);
+            byte[] buffer = new byte[BLOCK + 3];
+            int size;
+            while ((size = in.read(buffer, 0, buffer.length)) != -1)
+                read.write(buffer, 0, size);
+        }
+        assertArrayEquals(data, read.toByteArray());
+    }
+
+    @Test
+    public void reusedBlocksHoldTheNewPayload() throws IOException {
+        PayloadArena arena = new PayloadArena(SLAB, SLAB, BLOCK);
+        arena.allocate("a", bytes(SLAB)).free();
+        byte[] data = "{\"new\": true}".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        arena.allocate("a", data).writeTo(out);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void freedPayloadsCannotBeRead() throws IOException {
+        PayloadArena arena = new PayloadArena(SLAB, SLAB, BLOCK);
+        PayloadArena.Payload payload = arena.allocate("a", bytes(BLOCK));
+        payload.free();
+        payload.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetMustFitASlab() {
+        new PayloadArena(SLAB - 1, SLAB, BLOCK);
+    }
+}
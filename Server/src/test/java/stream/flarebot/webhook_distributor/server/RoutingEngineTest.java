@@ -0,0 +1,118 @@
+package stream.flarebot.webhook_distributor.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class RoutingEngineTest {
+
+    private static RoutingEngine engine(String rules) {
+        List<RoutingRule> list = new ArrayList<>();
+        for (JsonElement rule : new JsonParser().parse(rules).getAsJsonArray())
+            list.add(RoutingRule.fromJson(rule.getAsJsonObject()));
+        return new RoutingEngine(list);
+    }
+
+    private static String route(RoutingEngine engine, String service, Map<String, String> headers, String body) {
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        map.putAll(headers);
+        return engine.route(service, map::get, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String route(RoutingEngine engine, String body) {
+        return route(engine, "github", Collections.emptyMap(), body);
+    }
+
+    @Test
+    public void routesOnNestedField() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"flarebot\", "
+                + "\"json\": {\"repository.full_name\": \"FlareBot/FlareBot\"}}]");
+
+        assertEquals("flarebot", route(engine, "{\"repository\": {\"id\": 1, \"full_name\": \"FlareBot/FlareBot\"}}"));
+        assertEquals("github", route(engine, "{\"repository\": {\"full_name\": \"FlareBot/Other\"}}"));
+        assertEquals("github", route(engine, "{\"full_name\": \"FlareBot/FlareBot\"}"));
+    }
+
+    @Test
+    public void routesOnArrayIndex() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"first\", "
+                + "\"json\": {\"commits.1.author\": \"arsen\"}}]");
+
+        assertEquals("first", route(engine, "{\"commits\": [{\"author\": \"walshy\"}, {\"author\": \"arsen\"}]}"));
+        assertEquals("github", route(engine, "{\"commits\": [{\"author\": \"arsen\"}, {\"author\": \"walshy\"}]}"));
+        assertEquals("github", route(engine, "{\"commits\": [{\"author\": \"arsen\"}]}"));
+    }
+
+    @Test
+    public void matchesPrimitivesAsStrings() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"numbers\", "
+                + "\"json\": {\"id\": \"5\", \"private\": \"false\", \"deleted\": \"null\"}}]");
+
+        assertEquals("numbers", route(engine, "{\"id\": 5, \"private\": false, \"deleted\": null}"));
+        assertEquals("github", route(engine, "{\"id\": {\"value\": 5}, \"private\": false, \"deleted\": null}"));
+    }
+
+    @Test
+    public void firstValueOfRepeatedFieldWins() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"push\", \"json\": {\"action\": \"push\"}}]");
+
+        assertEquals("push", route(engine, "{\"action\": \"push\", \"action\": \"pull\"}"));
+        assertEquals("github", route(engine, "{\"action\": \"pull\", \"action\": \"push\"}"));
+    }
+
+    @Test
+    public void stopsReadingOnceEveryPathIsFound() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"push\", \"json\": {\"action\": \"push\"}}]");
+
+        // Everything after the value is never read, so it doesn't matter that it isn't valid.
+        assertEquals("push", route(engine, "{\"action\": \"push\", \"rest\": [1, 2,"));
+    }
+
+    @Test
+    public void malformedBodyMatchesNothing() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"push\", \"json\": {\"action\": \"push\"}}]");
+
+        assertEquals("github", route(engine, "{\"other\": [1, 2,"));
+        assertEquals("github", route(engine, ""));
+        assertEquals("github", route(engine, "[\"action\", \"push\"]"));
+    }
+
+    @Test
+    public void headersAreCaseInsensitive() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"push\", "
+                + "\"headers\": {\"X-GitHub-Event\": \"push\"}}]");
+
+        assertEquals("push", route(engine, "github", Collections.singletonMap("x-github-event", "PUSH"), "{}"));
+        assertEquals("github", route(engine, "github", Collections.singletonMap("X-GitHub-Event", "issues"), "{}"));
+        assertEquals("github", route(engine, "github", Collections.emptyMap(), "{}"));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"master\", "
+                + "\"headers\": {\"X-GitHub-Event\": \"push\"}, \"json\": {\"ref\": \"refs/heads/master\"}}, "
+                + "{\"from\": \"github\", \"to\": \"push\", \"headers\": {\"X-GitHub-Event\": \"push\"}}]");
+        Map<String, String> push = Collections.singletonMap("X-GitHub-Event", "push");
+
+        assertEquals("master", route(engine, "github", push, "{\"ref\": \"refs/heads/master\"}"));
+        assertEquals("push", route(engine, "github", push, "{\"ref\": \"refs/heads/dev\"}"));
+        assertEquals(1, engine.getRules().get(0).getMatches());
+        assertEquals(1, engine.getRules().get(1).getMatches());
+    }
+
+    @Test
+    public void otherServicesAreNotRouted() {
+        RoutingEngine engine = engine("[{\"from\": \"github\", \"to\": \"push\", \"json\": {\"action\": \"push\"}}]");
+
+        assertEquals("gitlab", route(engine, "gitlab", Collections.emptyMap(), "{\"action\": \"push\"}"));
+    }
+}